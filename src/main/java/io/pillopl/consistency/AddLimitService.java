@@ -2,23 +2,49 @@ package io.pillopl.consistency;
 
 import org.javamoney.moneta.Money;
 
+import java.util.List;
+
 class AddLimitService {
 
     private final VirtualCreditCardDatabase virtualCreditCardDatabase;
+    private final Outcomes addLimitOutcomes;
+    private final IdempotencyIndex limitChanges;
 
     AddLimitService(VirtualCreditCardDatabase virtualCreditCardDatabase) {
+        this(virtualCreditCardDatabase, Metrics.disabled());
+    }
+
+    AddLimitService(VirtualCreditCardDatabase virtualCreditCardDatabase, Metrics metrics) {
+        this(virtualCreditCardDatabase, metrics, new IdempotencyIndex());
+    }
+
+    AddLimitService(
+        VirtualCreditCardDatabase virtualCreditCardDatabase,
+        Metrics metrics,
+        IdempotencyIndex limitChanges
+    ) {
         this.virtualCreditCardDatabase = virtualCreditCardDatabase;
+        this.addLimitOutcomes = Outcomes.of(metrics, "addLimitService.addLimit");
+        this.limitChanges = limitChanges;
+    }
+
+    Result addLimit(IdempotencyKey key, CardId cardId, Money limit) {
+        return limitChanges.execute(key, List.of(cardId, limit), () -> attempt(cardId, limit));
     }
 
     Result addLimit(CardId cardId, Money limit) {
+        return attempt(cardId, limit).result();
+    }
+
+    private Outcome attempt(CardId cardId, Money limit) {
         VirtualCreditCard card = virtualCreditCardDatabase.find(cardId);
         int expectedVersion = card.version();
 
         Result result = card.assignLimit(limit);
 
-        return result == Result.Success ?
-            virtualCreditCardDatabase.save(card, expectedVersion)
-            : result;
+        return result == Result.Success
+            ? Outcome.retryable(addLimitOutcomes.record(virtualCreditCardDatabase.save(card, expectedVersion)))
+            : Outcome.decided(addLimitOutcomes.record(result));
     }
 
 }
@@ -62,6 +62,7 @@ class BillingCycle implements Versioned {
     private int version;
     private BillingCycleId id;
     private CardId cardId;
+    private Instant closedAt;
 
 
     static BillingCycle withLimit(Money limit) {
@@ -103,10 +104,14 @@ class BillingCycle implements Versioned {
 
     private BillingCycle closed(CycleClosed event) {
         status = Status.Closed;
+        closedAt = event.closedAt();
         return this;
     }
 
     Result withdraw(Money amount) {
+        if (!Limit.inMinorUnits(amount)) {
+            return Result.Failure;
+        }
         if (status != Status.Opened) {
             return Result.Failure;
         }
@@ -126,6 +131,9 @@ class BillingCycle implements Versioned {
     }
 
     Result repay(Money amount) {
+        if (!Limit.inMinorUnits(amount)) {
+            return Result.Failure;
+        }
         if (status == Status.Closed) {
             // Question: How to handle repaying cycle
             // that was closed without settling all withdrawals?
@@ -157,6 +165,14 @@ class BillingCycle implements Versioned {
         return id;
     }
 
+    Limit limit() {
+        return limit;
+    }
+
+    Instant closedAt() {
+        return closedAt;
+    }
+
     List<BillingCycleEvent> dequeuePendingEvents() {
         var result = pendingEvents.stream().toList();
         pendingEvents.clear();
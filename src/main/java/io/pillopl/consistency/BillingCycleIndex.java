@@ -0,0 +1,43 @@
+package io.pillopl.consistency;
+
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+// Billing cycles ordered by their end date, so "cycles ending today"
+// is a range query instead of a scan over every stream.
+class BillingCycleIndex {
+    private final ConcurrentSkipListMap<LocalDate, Set<BillingCycleId>> byEndDate =
+        new ConcurrentSkipListMap<>();
+
+    void subscribeTo(EventStore eventStore) {
+        eventStore.subscribe(BillingCycleEvent.CycleOpened.class, this::onCycleOpened);
+    }
+
+    // For cycles opened before subscribing, e.g. after a restart.
+    void rebuildFrom(EventStore eventStore) {
+        eventStore.streamIds("BillingCycle", true).forEach(streamId ->
+            eventStore.readEvents(BillingCycleEvent.CycleOpened.class, streamId)
+                .forEach(this::onCycleOpened)
+        );
+    }
+
+    void onCycleOpened(BillingCycleEvent.CycleOpened cycleOpened) {
+        byEndDate.computeIfAbsent(cycleOpened.to(), to -> ConcurrentHashMap.newKeySet())
+            .add(cycleOpened.cycleId());
+    }
+
+    Stream<BillingCycleId> endingOn(LocalDate day) {
+        return endingBetween(day, day);
+    }
+
+    // Both ends inclusive
+    Stream<BillingCycleId> endingBetween(LocalDate from, LocalDate to) {
+        return byEndDate.subMap(from, true, to, true)
+            .values()
+            .stream()
+            .flatMap(Set::stream);
+    }
+}
@@ -0,0 +1,185 @@
+package io.pillopl.consistency;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Closes billing cycles once their end date has passed and opens the next
+// ones. Each run handles at most maxPerRun due cycles on a fixed number of
+// workers, the rest waits for the next run. A cycle that failed goes back
+// to the queue after a delay doubling with every failure in a row.
+class BillingCycleScheduler {
+    private static final Duration firstRetryDelay = Duration.ofSeconds(1);
+    private static final Duration maxRetryDelay = Duration.ofMinutes(15);
+
+    private final BillingCycleService billingCycleService;
+    private final Clock clock;
+    private final int maxPerRun;
+    private final ExecutorService workers;
+    private final PriorityBlockingQueue<BillingCycleId> byEndDate =
+        new PriorityBlockingQueue<>(64, Comparator.comparing(BillingCycleId::to));
+    private final Set<BillingCycleId> scheduled = ConcurrentHashMap.newKeySet();
+    private final PriorityBlockingQueue<Retry> retries =
+        new PriorityBlockingQueue<>(16, Comparator.comparingLong(Retry::atMillis));
+    private final Map<BillingCycleId, Integer> failures = new ConcurrentHashMap<>();
+    private final Counter failed;
+    private ScheduledExecutorService timer;
+
+    BillingCycleScheduler(BillingCycleService billingCycleService, Clock clock, int workers, int maxPerRun) {
+        this(billingCycleService, clock, workers, maxPerRun, Metrics.disabled());
+    }
+
+    BillingCycleScheduler(
+        BillingCycleService billingCycleService,
+        Clock clock,
+        int workers,
+        int maxPerRun,
+        Metrics metrics
+    ) {
+        this.billingCycleService = billingCycleService;
+        this.clock = clock;
+        this.maxPerRun = maxPerRun;
+        this.workers = Executors.newFixedThreadPool(workers, Thread.ofVirtual().factory());
+        this.failed = metrics.counter("billingCycleScheduler.failed");
+    }
+
+    void subscribeTo(EventStore eventStore) {
+        eventStore.subscribe(BillingCycleEvent.CycleOpened.class, opened -> schedule(opened.cycleId()));
+    }
+
+    // After a restart: every cycle that was opened and never closed.
+    void rebuildFrom(EventStore eventStore) {
+        eventStore.streamIds("BillingCycle", true).forEach(streamId -> {
+            var events = eventStore.readEvents(BillingCycleEvent.class, streamId);
+            var closed = events.stream().anyMatch(e -> e instanceof BillingCycleEvent.CycleClosed);
+            if (!closed && events.getFirst() instanceof BillingCycleEvent.CycleOpened opened) {
+                schedule(opened.cycleId());
+            }
+        });
+    }
+
+    void schedule(BillingCycleId cycleId) {
+        if (scheduled.add(cycleId)) {
+            byEndDate.add(cycleId);
+        }
+    }
+
+    int pending() {
+        return byEndDate.size() + retries.size();
+    }
+
+    void start(Duration period) {
+        timer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+        timer.scheduleWithFixedDelay(this::runDue, 0, period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        workers.shutdownNow();
+    }
+
+    int runDue() {
+        return runDue(LocalDate.now(clock));
+    }
+
+    // A cycle is due the day after it ends, returns how many went through
+    int runDue(LocalDate today) {
+        requeueRetries();
+        var due = new ArrayList<BillingCycleId>();
+        BillingCycleId next;
+        while (due.size() < maxPerRun
+            && (next = byEndDate.peek()) != null
+            && next.to().isBefore(today)
+            && byEndDate.remove(next)) {
+            scheduled.remove(next);
+            due.add(next);
+        }
+
+        var results = invokeAll(due);
+        var handled = 0;
+        for (int i = 0; i < results.size(); i++) {
+            var cycleId = due.get(i);
+            if (results.get(i).state() == Future.State.SUCCESS) {
+                failures.remove(cycleId);
+                handled++;
+            } else {
+                failed.increment();
+                retryLater(cycleId);
+            }
+        }
+        return handled;
+    }
+
+    // Failures, e.g. a race lost with a withdrawal, go through retryLater.
+    // A retry finds the cycle already closed and only opens the next one.
+    private void closeAndOpenNext(BillingCycleId cycleId) {
+        var closed = billingCycleService.close(cycleId);
+        var cardId = cycleId.cardId();
+        if (closed == Result.Failure && isOpened(cardId, cycleId)) {
+            throw new IllegalStateException("Couldn't close " + cycleId);
+        }
+
+        var opened = billingCycleService.openNextCycle(cardId);
+        // fine if someone else opened the next cycle in the meantime
+        if (opened == Result.Failure
+            && billingCycleService.getCurrentlyOpenedBillingCycleId(cardId).filter(id -> !id.equals(cycleId)).isEmpty()) {
+            throw new IllegalStateException("Couldn't open the cycle after " + cycleId);
+        }
+    }
+
+    private boolean isOpened(CardId cardId, BillingCycleId cycleId) {
+        return billingCycleService.getCurrentlyOpenedBillingCycleId(cardId).filter(cycleId::equals).isPresent();
+    }
+
+    // Interrupted before the tasks are done, the ones left are cancelled
+    private List<Future<Void>> invokeAll(List<BillingCycleId> cycleIds) {
+        var tasks = cycleIds.stream()
+            .map(cycleId -> (Callable<Void>) () -> {
+                closeAndOpenNext(cycleId);
+                return null;
+            })
+            .toList();
+        try {
+            return workers.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cycleIds.forEach(this::schedule);
+            return List.of();
+        }
+    }
+
+    private void retryLater(BillingCycleId cycleId) {
+        var failuresInRow = failures.merge(cycleId, 1, Integer::sum);
+        var delay = firstRetryDelay.multipliedBy(1L << Math.min(failuresInRow - 1, 20));
+        if (delay.compareTo(maxRetryDelay) > 0) {
+            delay = maxRetryDelay;
+        }
+        retries.add(new Retry(cycleId, clock.millis() + delay.toMillis()));
+    }
+
+    private void requeueRetries() {
+        var now = clock.millis();
+        Retry retry;
+        while ((retry = retries.peek()) != null && retry.atMillis() <= now && retries.remove(retry)) {
+            schedule(retry.cycleId());
+        }
+    }
+
+    private record Retry(BillingCycleId cycleId, long atMillis) {
+    }
+}
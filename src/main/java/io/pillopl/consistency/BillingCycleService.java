@@ -2,18 +2,32 @@ package io.pillopl.consistency;
 
 import org.springframework.retry.support.RetryTemplate;
 
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 
 class BillingCycleService {
     private final VirtualCreditCardDatabase virtualCreditCardDatabase;
     private final BillingCycleDatabase billingCycleDatabase;
+    private final Outcomes openNextCycleOutcomes;
+    private final Outcomes closeOutcomes;
 
     BillingCycleService(
         VirtualCreditCardDatabase virtualCreditCardDatabase,
         BillingCycleDatabase billingCycleDatabase
+    ) {
+        this(virtualCreditCardDatabase, billingCycleDatabase, Metrics.disabled());
+    }
+
+    BillingCycleService(
+        VirtualCreditCardDatabase virtualCreditCardDatabase,
+        BillingCycleDatabase billingCycleDatabase,
+        Metrics metrics
     ) {
         this.virtualCreditCardDatabase = virtualCreditCardDatabase;
         this.billingCycleDatabase = billingCycleDatabase;
+        this.openNextCycleOutcomes = Outcomes.of(metrics, "billingCycleService.openNextCycle");
+        this.closeOutcomes = Outcomes.of(metrics, "billingCycleService.close");
     }
 
     Optional<BillingCycleId> getCurrentlyOpenedBillingCycleId(CardId cardId) {
@@ -32,9 +46,22 @@ class BillingCycleService {
 
         Result result = card.openNextCycle();
 
-        return result == Result.Success ?
-            virtualCreditCardDatabase.save(card, expectedVersion)
-            : result;
+        if (result != Result.Success) {
+            return openNextCycleOutcomes.record(result);
+        }
+
+        var cycleId = card.getCurrentBillingCycle().id();
+        var cycle = BillingCycle.openCycle(
+            cycleId,
+            cardId,
+            cycleId.from(),
+            cycleId.to(),
+            card.getLimit()
+        );
+
+        return openNextCycleOutcomes.record(
+            billingCycleDatabase.save(cycle, 0, card, expectedVersion)
+        );
     }
 
     Result close(BillingCycleId billingCycleId) {
@@ -43,26 +70,129 @@ class BillingCycleService {
 
         Result result = billingCycle.closeCycle();
 
-        return result == Result.Success ?
-            billingCycleDatabase.save(billingCycle, expectedVersion)
-            : result;
+        if (result != Result.Success) {
+            return closeOutcomes.record(result);
+        }
+
+        VirtualCreditCard card = virtualCreditCardDatabase.find(billingCycleId.cardId());
+        int expectedCardVersion = card.version();
+
+        card.recordCycleClosure(
+            billingCycleId,
+            billingCycle.limit(),
+            billingCycle.closedAt()
+        );
+
+        return closeOutcomes.record(billingCycleDatabase.save(
+            billingCycle,
+            expectedVersion,
+            card,
+            expectedCardVersion
+        ));
     }
 }
 
 // Question: Sync or Async, that is the question!
+// BillingCycleService now stores cycle and card together, handlers below
+// are kept for events appended separately and ignore already applied ones.
 class BillingCycleEventHandler {
     private final VirtualCreditCardDatabase virtualCreditCardDatabase;
     private final BillingCycleDatabase billingCycleDatabase;
     private final RetryTemplate retryTemplate = RetryTemplate.builder()
         .infiniteRetry()
         .build();
+    private final Counter cycleClosedRetries;
+    private final Counter duplicates;
+    private final HotKeys contendedStreams;
+    private final HandlerCheckpoints checkpoints;
 
     public BillingCycleEventHandler(
         VirtualCreditCardDatabase virtualCreditCardDatabase,
         BillingCycleDatabase billingCycleDatabase
+    ) {
+        this(virtualCreditCardDatabase, billingCycleDatabase, Metrics.disabled());
+    }
+
+    BillingCycleEventHandler(
+        VirtualCreditCardDatabase virtualCreditCardDatabase,
+        BillingCycleDatabase billingCycleDatabase,
+        Metrics metrics
+    ) {
+        this(
+            virtualCreditCardDatabase,
+            billingCycleDatabase,
+            metrics,
+            new HandlerCheckpoints(
+                "billingCycleEventHandler",
+                Database.collection(StreamCheckpoint.class, metrics),
+                100
+            )
+        );
+    }
+
+    // Checkpoints survive restarts in the directory, so only events of the
+    // last uncommitted batch are handled again
+    BillingCycleEventHandler(
+        VirtualCreditCardDatabase virtualCreditCardDatabase,
+        BillingCycleDatabase billingCycleDatabase,
+        Metrics metrics,
+        Path checkpointsDirectory
+    ) {
+        this(
+            virtualCreditCardDatabase,
+            billingCycleDatabase,
+            metrics,
+            HandlerCheckpoints.durable("billingCycleEventHandler", checkpointsDirectory, 100, metrics)
+        );
+    }
+
+    BillingCycleEventHandler(
+        VirtualCreditCardDatabase virtualCreditCardDatabase,
+        BillingCycleDatabase billingCycleDatabase,
+        Metrics metrics,
+        HandlerCheckpoints checkpoints
     ) {
         this.virtualCreditCardDatabase = virtualCreditCardDatabase;
         this.billingCycleDatabase = billingCycleDatabase;
+        this.cycleClosedRetries = metrics.counter("billingCycleEventHandler.cycleClosed.retries");
+        this.duplicates = metrics.counter("billingCycleEventHandler.duplicates");
+        this.contendedStreams = metrics.hotKeys("eventStore.streams");
+        this.checkpoints = checkpoints;
+    }
+
+    void subscribeTo(EventStore eventStore) {
+        eventStore.subscribe(VirtualCreditCardEvent.CycleOpened.class, null, this::handleOnce);
+        eventStore.subscribe(BillingCycleEvent.CycleClosed.class, null, this::handleOnce);
+    }
+
+    // Replays the log after a crash from where the last rebuild got to.
+    // Checkpoints are committed every batch of handled events and the
+    // position after every page, so a rebuild that crashed itself resumes
+    // from its last page and events handled since are skipped.
+    RebuildProgress rebuildFrom(EventStore eventStore) {
+        var rebuild = new ParallelRebuild(eventStore, event -> {
+            if (event.data() instanceof VirtualCreditCardEvent.CycleOpened
+                || event.data() instanceof BillingCycleEvent.CycleClosed) {
+                handleOnce(event);
+            }
+        });
+        rebuild.run(checkpoints.rebuiltUpTo(), checkpoints::rebuilt);
+        return rebuild.progress();
+    }
+
+    // Checkpoints to keep in a store image next to the events
+    List<ImagedCollection<?>> imagedCollections() {
+        return checkpoints.imaged();
+    }
+
+    // Redelivered events are skipped before any aggregate is read
+    void handleOnce(EventEnvelope event) {
+        if (checkpoints.isProcessed(event.metadata())) {
+            duplicates.increment();
+            return;
+        }
+        handle(event.data());
+        checkpoints.processed(event.metadata());
     }
 
     void handle(Object event) {
@@ -85,13 +215,17 @@ class BillingCycleEventHandler {
         );
 
         // we ignore result, as if it was already opened, we can safely ignore it
-        billingCycleDatabase.save(cycle, 0);
+        billingCycleDatabase.save(cycle, ExpectedVersion.noStream());
     }
 
     // this should be retried on concurrency failure
 
     void onBillingCycleClosed(BillingCycleEvent.CycleClosed cycleOpened) {
         retryTemplate.execute(context -> {
+            if (context.getRetryCount() > 0) {
+                cycleClosedRetries.increment();
+                contendedStreams.retried(cycleOpened.cartId().toString());
+            }
             VirtualCreditCard card = virtualCreditCardDatabase.find(cycleOpened.cartId());
             int expectedVersion = card.version();
 
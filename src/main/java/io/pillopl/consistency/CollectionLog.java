@@ -0,0 +1,328 @@
+package io.pillopl.consistency;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+interface RecordCodec<T> {
+    void write(T record, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
+
+// Makes a DatabaseCollection survive restarts. Saves are encoded and queued
+// once the entry is updated, outside of its lock, and return without waiting
+// for the disk. A single writer thread appends everything queued so far and
+// fsyncs it as one group commit, at least every flushInterval. Once the log
+// outgrows checkpointBytes the writer starts a new log file, snapshots the
+// collection and drops older files.
+//
+// Recovery applies an upsert only if its version is newer than what it has,
+// so upserts of one entry may reach the log in any order, and the snapshot,
+// taken while saves go on, may already contain some of the newer log.
+//
+// A batch that fails to be written is kept and written again into a fresh
+// file, as the current one may end with a torn entry. Until that succeeds
+// new saves are refused and flushes fail rather than wait.
+class CollectionLog<T> {
+    private static final String logPrefix = "wal-";
+    private static final String snapshotPrefix = "snapshot-";
+
+    private final Path directory;
+    private final RecordCodec<T> codec;
+    private final Duration flushInterval;
+    private final long checkpointBytes;
+    private final LinkedBlockingQueue<Object> queued = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile IOException failure;
+    private Map<String, RecordWithVersion> entries;
+    private FileChannel log;
+    private long segment;
+    private long logBytes;
+    private volatile boolean closed;
+
+    CollectionLog(Path directory, RecordCodec<T> codec) {
+        this(directory, codec, Duration.ofMillis(5), 64 * 1024 * 1024);
+    }
+
+    CollectionLog(Path directory, RecordCodec<T> codec, Duration flushInterval, long checkpointBytes) {
+        this.directory = directory;
+        this.codec = codec;
+        this.flushInterval = flushInterval;
+        this.checkpointBytes = checkpointBytes;
+        this.writer = Thread.ofPlatform().daemon().name("collection-log-" + directory.getFileName()).unstarted(this::writeQueued);
+    }
+
+    // Loads the latest snapshot and the log written after it, then starts
+    // logging into a fresh file.
+    void recover(Map<String, RecordWithVersion> entries) {
+        this.entries = entries;
+        try {
+            Files.createDirectories(directory);
+            var snapshot = latest(snapshotPrefix);
+            if (snapshot >= 0) {
+                replay(entries, file(snapshotPrefix, snapshot));
+            }
+            for (var logSegment : segments(logPrefix)) {
+                if (logSegment > snapshot) {
+                    replay(entries, file(logPrefix, logSegment));
+                }
+                segment = Math.max(segment, logSegment + 1);
+            }
+            segment = Math.max(segment, snapshot + 1);
+            log = open(segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writer.start();
+    }
+
+    void append(String id, int version, T record) {
+        queued.add(encode(id, version, record));
+    }
+
+    // Saves check it before updating the entry
+    void ensureWritable() {
+        var failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException("Collection log in " + directory + " can't be written", failed);
+        }
+    }
+
+    // Waits until everything saved before the call is on disk
+    void flush() {
+        var flushed = new CompletableFuture<Void>();
+        queued.add(flushed);
+        flushed.join();
+    }
+
+    void close() {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private byte[] encode(String id, int version, T record) {
+        var bytes = new ByteArrayOutputStream(64);
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeUTF(id);
+            out.writeInt(version);
+            codec.write(record, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var entry = ByteBuffer.wrap(bytes.toByteArray());
+        var crc = new CRC32C();
+        crc.update(entry.array(), 8, entry.capacity() - 8);
+        entry.putInt(0, entry.capacity() - 8);
+        entry.putInt(4, (int) crc.getValue());
+        return entry.array();
+    }
+
+    private void writeQueued() {
+        var batch = new ArrayList<Object>();
+        var failuresInRow = 0;
+        while (!closed) {
+            try {
+                if (batch.isEmpty()) {
+                    var first = queued.poll(flushInterval.toNanos(), TimeUnit.NANOSECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                queued.drainTo(batch);
+                groupCommit(batch);
+                batch.clear();
+                failure = null;
+                failuresInRow = 0;
+                if (logBytes >= checkpointBytes) {
+                    checkpoint();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                failure = e;
+                failFlushes(batch, e);
+                try {
+                    Thread.sleep(Math.min(1_000, Math.max(1, flushInterval.toMillis()) << Math.min(failuresInRow++, 10)));
+                    startNewLog();
+                } catch (InterruptedException interrupted) {
+                    return;
+                } catch (IOException stillFailing) {
+                    failure = stillFailing;
+                }
+            }
+        }
+        try {
+            log.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Entries stay in the batch for the next attempt
+    private static void failFlushes(List<Object> batch, IOException failure) {
+        batch.removeIf(item -> {
+            if (item instanceof CompletableFuture<?> flushed) {
+                flushed.completeExceptionally(failure);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void startNewLog() throws IOException {
+        try {
+            log.close();
+        } finally {
+            log = open(++segment);
+            logBytes = 0;
+        }
+    }
+
+    private void groupCommit(List<Object> batch) throws IOException {
+        var buffers = new ArrayList<ByteBuffer>(batch.size());
+        for (var item : batch) {
+            if (item instanceof byte[] entry) {
+                buffers.add(ByteBuffer.wrap(entry));
+            }
+        }
+        if (!buffers.isEmpty()) {
+            var toWrite = buffers.toArray(ByteBuffer[]::new);
+            while (toWrite[toWrite.length - 1].hasRemaining()) {
+                logBytes += log.write(toWrite);
+            }
+            log.force(false);
+        }
+        for (var item : batch) {
+            if (item instanceof CompletableFuture<?> flushed) {
+                flushed.complete(null);
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        var snapshotted = segment;
+        startNewLog();
+
+        var temporary = directory.resolve(snapshotPrefix + snapshotted + ".tmp");
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            // copied first, so every entry is written as one version of it
+            for (var entry : Map.copyOf(entries).entrySet()) {
+                var record = entry.getValue();
+                @SuppressWarnings("unchecked")
+                var encoded = encode(entry.getKey(), record.version(), (T) record.record());
+                out.write(encoded);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file(snapshotPrefix, snapshotted), StandardCopyOption.ATOMIC_MOVE);
+
+        for (var old : segments(logPrefix)) {
+            if (old <= snapshotted) {
+                Files.delete(file(logPrefix, old));
+            }
+        }
+        for (var old : segments(snapshotPrefix)) {
+            if (old < snapshotted) {
+                Files.delete(file(snapshotPrefix, old));
+            }
+        }
+    }
+
+    // Stops at the first torn or corrupted entry, which is where a crash
+    // interrupted the last group commit.
+    private void replay(Map<String, RecordWithVersion> entries, Path file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] entry;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    entry = in.readNBytes(length);
+                } catch (EOFException end) {
+                    return;
+                }
+                var crc = new CRC32C();
+                crc.update(entry);
+                if (entry.length != length || (int) crc.getValue() != checksum) {
+                    return;
+                }
+                apply(entries, new DataInputStream(new ByteArrayInputStream(entry)));
+            }
+        }
+    }
+
+    private void apply(Map<String, RecordWithVersion> entries, DataInputStream entry) throws IOException {
+        var id = entry.readUTF();
+        var version = entry.readInt();
+        var record = codec.read(entry);
+        if (record instanceof VersionedWithAutoIncrement versioned) {
+            versioned.setVersion(version);
+        }
+        entries.merge(id, new RecordWithVersion(record, version), (current, logged) ->
+            logged.version() > current.version() ? logged : current
+        );
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        return FileChannel.open(file(logPrefix, segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path file(String prefix, long segment) {
+        return directory.resolve(prefix + segment + (prefix.equals(logPrefix) ? ".log" : ".dat"));
+    }
+
+    private long latest(String prefix) throws IOException {
+        var all = segments(prefix);
+        return all.isEmpty() ? -1 : all.getLast();
+    }
+
+    private List<Long> segments(String prefix) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files
+                .map(file -> file.getFileName().toString())
+                .filter(name -> name.startsWith(prefix) && !name.endsWith(".tmp"))
+                .map(name -> Long.parseLong(name.substring(prefix.length(), name.indexOf('.'))))
+                .sorted()
+                .toList();
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package io.pillopl.consistency;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -20,16 +23,43 @@ record RecordWithVersion(Object record, int version) {
 
 class Database {
     static <T> DatabaseCollection<T> collection(Class<T> entryClass) {
-        return new DatabaseCollection<>(entryClass);
+        return collection(entryClass, Metrics.disabled());
+    }
+
+    static <T> DatabaseCollection<T> collection(Class<T> entryClass, Metrics metrics) {
+        return new DatabaseCollection<>(entryClass, metrics, null);
+    }
+
+    // Recovers what was saved to the directory before and keeps logging
+    // there, saves reach the disk within a flush interval, see save()
+    static <T> DatabaseCollection<T> durableCollection(
+        Class<T> entryClass,
+        CollectionLog<T> log,
+        Metrics metrics
+    ) {
+        return new DatabaseCollection<>(entryClass, metrics, log);
     }
 }
 
 class DatabaseCollection<T> {
     private final Class<T> entryClass;
     private final Map<String, RecordWithVersion> entries = new ConcurrentHashMap<>();
+    private final Counter conflicts;
+    private final HotKeys contendedEntries;
+    private final CollectionLog<T> log;
 
-    DatabaseCollection(Class<T> entryClass) {
+    DatabaseCollection(Class<T> entryClass, Metrics metrics, CollectionLog<T> log) {
         this.entryClass = entryClass;
+        this.log = log;
+        if (log != null) {
+            log.recover(entries);
+        }
+        this.conflicts = metrics.counter(
+            "database." + entryClass.getSimpleName() + ".conflicts"
+        );
+        this.contendedEntries = metrics.hotKeys(
+            "database." + entryClass.getSimpleName() + ".entries"
+        );
     }
 
     Result save(String id, T record) {
@@ -39,9 +69,16 @@ class DatabaseCollection<T> {
         );
     }
 
+    // In a durable collection Success means the upsert is queued for the
+    // log, not that it's on disk: a crash can lose up to a flush interval
+    // of saves. Callers that need it on disk call flush() afterwards.
     Result save(String id, T record, int expectedVersion) {
         var newExpectedVersion = expectedVersion + 1;
         var wasUpdated = new AtomicBoolean(false);
+        contendedEntries.attempted(id);
+        if (log != null) {
+            log.ensureWritable();
+        }
 
         entries.compute(id, (key, currentValue) -> {
             var currentVersion = currentValue != null ? currentValue.version() : 0;
@@ -59,9 +96,53 @@ class DatabaseCollection<T> {
             return new RecordWithVersion(record, newExpectedVersion);
         });
 
-        return wasUpdated.get() ?
-            Result.Success
-            : Result.Failure;
+        if (!wasUpdated.get()) {
+            conflicts.increment();
+            contendedEntries.conflicted(id);
+            return Result.Failure;
+        }
+        if (log != null) {
+            log.append(id, newExpectedVersion, record);
+        }
+        return Result.Success;
+    }
+
+    // Waits for saves made so far to be on disk, nothing to wait for
+    // in collections kept only in memory
+    void flush() {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    void close() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    // Entries with their versions, for a store image
+    void writeTo(DataOutput out, RecordCodec<T> codec) throws IOException {
+        var copied = Map.copyOf(entries);
+        out.writeInt(copied.size());
+        for (var entry : copied.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().version());
+            codec.write(entryClass.cast(entry.getValue().record()), out);
+        }
+    }
+
+    // Only collections kept in memory start from an image,
+    // durable ones recover from their own log
+    void readFrom(DataInput in, RecordCodec<T> codec) throws IOException {
+        if (log != null) {
+            throw new IllegalStateException("Durable collection of " + entryClass.getSimpleName() + " recovers from its log");
+        }
+        for (var count = in.readInt(); count > 0; count--) {
+            var id = in.readUTF();
+            var version = in.readInt();
+            entries.put(id, new RecordWithVersion(codec.read(in), version));
+        }
     }
 
     Optional<T> find(String id) {
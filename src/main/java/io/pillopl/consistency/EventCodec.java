@@ -0,0 +1,398 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+// Hand written, reflection-free binary layout of events and their metadata.
+// Integers are zig-zag varints, UUIDs two longs, dates epoch days and money
+// a currency numeric code with an amount in minor units.
+// Every event starts with the schema version and its EventTypes id.
+// Events of older versions are upcast when read, see EventUpcasters.
+//
+// Metadata is only read in the layout of version 3 on. Version 1 kept the
+// event type as a name and neither 1 nor 2 had a position, such events
+// have to be migrated before this codec reads them.
+class EventCodec {
+    static final byte schemaVersion = 3;
+    static final byte oldestMetadataVersion = 3;
+
+    private static final Map<Integer, CurrencyUnit> currencies = new HashMap<>();
+    private static final List<Function<ByteBuffer, Object>> decoders = new ArrayList<>();
+
+    static {
+        for (var currency : Monetary.getCurrencies()) {
+            if (currency.getNumericCode() >= 0) {
+                currencies.put(currency.getNumericCode(), currency);
+            }
+        }
+
+        decoder(BillingCycleEvent.CycleOpened.class, buffer -> new BillingCycleEvent.CycleOpened(
+            getCycleId(buffer),
+            getCardId(buffer),
+            getDate(buffer),
+            getDate(buffer),
+            getLimit(buffer),
+            getInstant(buffer)
+        ));
+        decoder(BillingCycleEvent.CardRepaid.class, buffer -> new BillingCycleEvent.CardRepaid(
+            getCycleId(buffer),
+            getCardId(buffer),
+            getMoney(buffer),
+            getInstant(buffer)
+        ));
+        decoder(BillingCycleEvent.CardWithdrawn.class, buffer -> new BillingCycleEvent.CardWithdrawn(
+            getCycleId(buffer),
+            getCardId(buffer),
+            getMoney(buffer),
+            getInstant(buffer)
+        ));
+        decoder(BillingCycleEvent.CycleClosed.class, buffer -> new BillingCycleEvent.CycleClosed(
+            getCycleId(buffer),
+            getCardId(buffer),
+            getLimit(buffer),
+            (int) getVarLong(buffer),
+            getInstant(buffer)
+        ));
+        decoder(VirtualCreditCardEvent.CardCreated.class, buffer -> new VirtualCreditCardEvent.CardCreated(
+            getCardId(buffer),
+            getCurrency(buffer),
+            getInstant(buffer)
+        ));
+        decoder(VirtualCreditCardEvent.LimitAssigned.class, buffer -> new VirtualCreditCardEvent.LimitAssigned(
+            getCardId(buffer),
+            getMoney(buffer),
+            getInstant(buffer)
+        ));
+        decoder(VirtualCreditCardEvent.CardDeactivated.class, buffer -> new VirtualCreditCardEvent.CardDeactivated(
+            getCardId(buffer),
+            getInstant(buffer)
+        ));
+        decoder(VirtualCreditCardEvent.CycleOpened.class, buffer -> new VirtualCreditCardEvent.CycleOpened(
+            getCycleId(buffer),
+            getCardId(buffer),
+            getDate(buffer),
+            getDate(buffer),
+            getLimit(buffer),
+            getInstant(buffer)
+        ));
+        decoder(VirtualCreditCardEvent.CycleClosed.class, buffer -> new VirtualCreditCardEvent.CycleClosed(
+            getCycleId(buffer),
+            getCardId(buffer),
+            getMoney(buffer),
+            getInstant(buffer)
+        ));
+        decoder(OwnershipEvent.AccessGranted.class, buffer -> new OwnershipEvent.AccessGranted(
+            getCardId(buffer),
+            new OwnerId(getUuid(buffer)),
+            getInstant(buffer)
+        ));
+        decoder(OwnershipEvent.AccessRevoked.class, buffer -> new OwnershipEvent.AccessRevoked(
+            getCardId(buffer),
+            new OwnerId(getUuid(buffer)),
+            getInstant(buffer)
+        ));
+    }
+
+    // Bytes of a single event, for storages keeping each one apart. Events
+    // take a couple hundred bytes, so the first buffer nearly always fits.
+    static byte[] encode(EventEnvelope envelope) {
+        for (var size = 256; ; size *= 2) {
+            var buffer = ByteBuffer.allocate(size);
+            try {
+                encode(envelope, buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException tooSmall) {
+                // try again with a bigger one
+            }
+        }
+    }
+
+    static void encode(EventEnvelope envelope, ByteBuffer buffer) {
+        encodeMetadata(envelope.metadata(), buffer);
+        encodeEvent(envelope.data(), buffer);
+    }
+
+    // Event of the current schema only, older ones fail without upcasters
+    static EventEnvelope decode(ByteBuffer buffer) {
+        return decode(buffer, EventUpcasters.none);
+    }
+
+    // Leaves the buffer right after the event, upcast or not
+    static EventEnvelope decode(ByteBuffer buffer, EventUpcasters upcasters) {
+        var metadata = decodeMetadata(buffer);
+        if (buffer.get(buffer.position()) == schemaVersion) {
+            return new EventEnvelope(decodeEvent(buffer), metadata);
+        }
+        return new EventEnvelope(upcasters.decode(metadata.eventId(), buffer), metadata);
+    }
+
+    // Whether an encoded event was written with the current schema
+    static boolean isCurrent(ByteBuffer buffer) {
+        var encoded = buffer.duplicate();
+        decodeMetadata(encoded);
+        return encoded.get() == schemaVersion;
+    }
+
+    static void encodeMetadata(EventMetadata metadata, ByteBuffer buffer) {
+        buffer.put(schemaVersion);
+        putString(buffer, metadata.streamId());
+        putVarLong(buffer, metadata.eventType());
+        putUuid(buffer, metadata.eventId());
+        putVarLong(buffer, metadata.version());
+        putVarLong(buffer, metadata.position());
+        putInstant(buffer, metadata.occurredAt());
+    }
+
+    static EventMetadata decodeMetadata(ByteBuffer buffer) {
+        var version = buffer.get();
+        if (version < oldestMetadataVersion || version > schemaVersion) {
+            throw new IllegalArgumentException("Unsupported metadata version " + version);
+        }
+        return new EventMetadata(
+            getString(buffer),
+            (int) getVarLong(buffer),
+            getUuid(buffer),
+            (int) getVarLong(buffer),
+            getVarLong(buffer),
+            getInstant(buffer)
+        );
+    }
+
+    static void encodeEvent(Object event, ByteBuffer buffer) {
+        buffer.put(schemaVersion);
+        putVarLong(buffer, EventTypes.idOf(event.getClass()));
+        switch (event) {
+            case BillingCycleEvent.CycleOpened e -> {
+                putCycleId(buffer, e.cycleId());
+                putUuid(buffer, e.cartId().contractId());
+                putDate(buffer, e.from());
+                putDate(buffer, e.to());
+                putLimit(buffer, e.startingLimit());
+                putInstant(buffer, e.openedAt());
+            }
+            case BillingCycleEvent.CardRepaid e -> {
+                putCycleId(buffer, e.cycleId());
+                putUuid(buffer, e.cartId().contractId());
+                putMoney(buffer, e.amount());
+                putInstant(buffer, e.repaidAt());
+            }
+            case BillingCycleEvent.CardWithdrawn e -> {
+                putCycleId(buffer, e.cycleId());
+                putUuid(buffer, e.cartId().contractId());
+                putMoney(buffer, e.amount());
+                putInstant(buffer, e.withdrawnAt());
+            }
+            case BillingCycleEvent.CycleClosed e -> {
+                putCycleId(buffer, e.cycleId());
+                putUuid(buffer, e.cartId().contractId());
+                putLimit(buffer, e.closingLimit());
+                putVarLong(buffer, e.withdrawalsInCycle());
+                putInstant(buffer, e.closedAt());
+            }
+            case VirtualCreditCardEvent.CardCreated e -> {
+                putUuid(buffer, e.cartId().contractId());
+                putCurrency(buffer, e.currency());
+                putInstant(buffer, e.createdAt());
+            }
+            case VirtualCreditCardEvent.LimitAssigned e -> {
+                putUuid(buffer, e.cartId().contractId());
+                putMoney(buffer, e.amount());
+                putInstant(buffer, e.assignedAt());
+            }
+            case VirtualCreditCardEvent.CardDeactivated e -> {
+                putUuid(buffer, e.cartId().contractId());
+                putInstant(buffer, e.deactivatedAt());
+            }
+            case VirtualCreditCardEvent.CycleOpened e -> {
+                putCycleId(buffer, e.cycleId());
+                putUuid(buffer, e.cartId().contractId());
+                putDate(buffer, e.from());
+                putDate(buffer, e.to());
+                putLimit(buffer, e.startingLimit());
+                putInstant(buffer, e.openedAt());
+            }
+            case VirtualCreditCardEvent.CycleClosed e -> {
+                putCycleId(buffer, e.cycleId());
+                putUuid(buffer, e.cartId().contractId());
+                putMoney(buffer, e.debt());
+                putInstant(buffer, e.closedAt());
+            }
+            case OwnershipEvent.AccessGranted e -> {
+                putUuid(buffer, e.cardId().contractId());
+                putUuid(buffer, e.ownerId().id());
+                putInstant(buffer, e.grantedAt());
+            }
+            case OwnershipEvent.AccessRevoked e -> {
+                putUuid(buffer, e.cardId().contractId());
+                putUuid(buffer, e.ownerId().id());
+                putInstant(buffer, e.revokedAt());
+            }
+            default -> throw new IllegalArgumentException(
+                "No binary layout for " + event.getClass().getName()
+            );
+        }
+    }
+
+    static Object decodeEvent(ByteBuffer buffer) {
+        return decodeEvent(buffer, EventUpcasters.none);
+    }
+
+    static Object decodeEvent(ByteBuffer buffer, EventUpcasters upcasters) {
+        var version = buffer.get();
+        if (version < 1 || version > schemaVersion) {
+            throw new IllegalArgumentException("Unsupported schema version " + version);
+        }
+        var type = (int) getVarLong(buffer);
+        if (type >= decoders.size() || decoders.get(type) == null) {
+            throw new IllegalArgumentException("Unknown event type " + type);
+        }
+        var fields = version == schemaVersion ? buffer : upcasters.upcast(type, version, buffer);
+        return decoders.get(type).apply(fields);
+    }
+
+    private static void decoder(Class<?> type, Function<ByteBuffer, Object> decoder) {
+        var id = EventTypes.idOf(type);
+        while (decoders.size() <= id) {
+            decoders.add(null);
+        }
+        decoders.set(id, decoder);
+    }
+
+    private static void putCycleId(ByteBuffer buffer, BillingCycleId cycleId) {
+        putUuid(buffer, cycleId.cardId().contractId());
+        putDate(buffer, cycleId.from());
+        putDate(buffer, cycleId.to());
+    }
+
+    private static BillingCycleId getCycleId(ByteBuffer buffer) {
+        return new BillingCycleId(getCardId(buffer), getDate(buffer), getDate(buffer));
+    }
+
+    private static CardId getCardId(ByteBuffer buffer) {
+        return new CardId(getUuid(buffer));
+    }
+
+    private static void putLimit(ByteBuffer buffer, Limit limit) {
+        putMoney(buffer, limit.max());
+        putMoney(buffer, limit.used());
+    }
+
+    private static Limit getLimit(ByteBuffer buffer) {
+        return new Limit(getMoney(buffer), getMoney(buffer));
+    }
+
+    // Amounts are in currency minor units, e.g. cents for USD,
+    // the aggregates refuse anything smaller before it becomes an event.
+    private static void putMoney(ByteBuffer buffer, Money money) {
+        var currency = money.getCurrency();
+        putCurrency(buffer, currency);
+        putVarLong(buffer, money.getNumberStripped()
+            .movePointRight(currency.getDefaultFractionDigits())
+            .longValueExact());
+    }
+
+    private static Money getMoney(ByteBuffer buffer) {
+        var currency = getCurrency(buffer);
+        var minorUnits = getVarLong(buffer);
+        return Money.of(
+            BigDecimal.valueOf(minorUnits, currency.getDefaultFractionDigits()),
+            currency
+        );
+    }
+
+    private static void putCurrency(ByteBuffer buffer, CurrencyUnit currency) {
+        if (currency.getNumericCode() < 0) {
+            throw new IllegalArgumentException(
+                "Currency without numeric code " + currency.getCurrencyCode()
+            );
+        }
+        putVarLong(buffer, currency.getNumericCode());
+    }
+
+    private static CurrencyUnit getCurrency(ByteBuffer buffer) {
+        var code = (int) getVarLong(buffer);
+        var currency = currencies.get(code);
+        if (currency == null) {
+            throw new IllegalArgumentException("Unknown currency code " + code);
+        }
+        return currency;
+    }
+
+    private static void putDate(ByteBuffer buffer, LocalDate date) {
+        putVarLong(buffer, date.toEpochDay());
+    }
+
+    private static LocalDate getDate(ByteBuffer buffer) {
+        return LocalDate.ofEpochDay(getVarLong(buffer));
+    }
+
+    private static void putInstant(ByteBuffer buffer, Instant instant) {
+        putVarLong(buffer, instant.getEpochSecond());
+        putVarLong(buffer, instant.getNano());
+    }
+
+    private static Instant getInstant(ByteBuffer buffer) {
+        return Instant.ofEpochSecond(getVarLong(buffer), getVarLong(buffer));
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    // Chars are written as varints, so ASCII stream ids take a byte per char
+    // and no intermediate byte array is needed.
+    private static void putString(ByteBuffer buffer, String value) {
+        putVarLong(buffer, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            putVarLong(buffer, value.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        var chars = new char[(int) getVarLong(buffer)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) getVarLong(buffer);
+        }
+        return new String(chars);
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        var zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        buffer.put((byte) zigZag);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        var zigZag = 0L;
+        var shift = 0;
+        byte current;
+        do {
+            current = buffer.get();
+            zigZag |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
@@ -0,0 +1,164 @@
+package io.pillopl.consistency;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+record EventFilter(String streamId, String category) {
+    static EventFilter all() {
+        return new EventFilter(null, null);
+    }
+
+    static EventFilter stream(String streamId) {
+        return new EventFilter(streamId, null);
+    }
+
+    static EventFilter category(String category) {
+        return new EventFilter(null, category);
+    }
+
+    boolean matches(EventEnvelope event) {
+        var eventStreamId = event.metadata().streamId();
+        return (streamId == null || streamId.equals(eventStreamId))
+            && (category == null || EventStore.isInCategory(eventStreamId, category));
+    }
+}
+
+// The part of the global log subscribers may read
+interface GlobalLog {
+    List<EventEnvelope> readAll(long fromPosition, int maxCount);
+}
+
+// Subscribers read the global log at their own pace, nothing is buffered
+// for them. Appends only signal live subscriptions that new events arrived.
+class EventPublisher implements AutoCloseable {
+    private static final int batchSize = 256;
+
+    private final GlobalLog log;
+    private final ExecutorService deliveries;
+    private final Set<EventSubscription> live = ConcurrentHashMap.newKeySet();
+
+    EventPublisher(GlobalLog log) {
+        this(log, Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    EventPublisher(GlobalLog log, ExecutorService deliveries) {
+        this.log = log;
+        this.deliveries = deliveries;
+    }
+
+    Flow.Publisher<EventEnvelope> from(EventFilter filter, long fromPosition) {
+        return subscriber -> {
+            var subscription = new EventSubscription(subscriber, filter, fromPosition);
+            live.add(subscription);
+            subscriber.onSubscribe(subscription);
+        };
+    }
+
+    void signal() {
+        for (var subscription : live) {
+            subscription.signal();
+        }
+    }
+
+    // Drains running at the moment see their subscription cancelled and
+    // stop after the event at hand, no new ones are started.
+    @Override
+    public void close() {
+        live.forEach(EventSubscription::cancel);
+        deliveries.shutdown();
+    }
+
+    private class EventSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super EventEnvelope> subscriber;
+        private final EventFilter filter;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private long position;
+
+        EventSubscription(
+            Flow.Subscriber<? super EventEnvelope> subscriber,
+            EventFilter filter,
+            long fromPosition
+        ) {
+            this.subscriber = subscriber;
+            this.filter = filter;
+            this.position = fromPosition;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " events"));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> {
+                var sum = current + added;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            live.remove(this);
+        }
+
+        void signal() {
+            if (!cancelled && demand.get() > 0 && pendingDrains.getAndIncrement() == 0) {
+                deliveries.execute(this::drain);
+            }
+        }
+
+        // Only one drain runs at a time, signals coming in meanwhile
+        // make it loop once more instead of scheduling another one.
+        private void drain() {
+            var missed = 1;
+            do {
+                try {
+                    deliverAvailable();
+                } catch (Throwable failure) {
+                    cancel();
+                    subscriber.onError(failure);
+                    return;
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliverAvailable() {
+            while (!cancelled) {
+                var wanted = demand.get();
+                if (wanted == 0) {
+                    return;
+                }
+                var events = log.readAll(position, (int) Math.min(wanted, batchSize));
+                if (events.isEmpty()) {
+                    return;
+                }
+                var delivered = 0;
+                for (var event : events) {
+                    if (cancelled) {
+                        return;
+                    }
+                    position = event.metadata().position() + 1;
+                    if (filter.matches(event)) {
+                        subscriber.onNext(event);
+                        delivered++;
+                    }
+                }
+                if (wanted != Long.MAX_VALUE) {
+                    demand.addAndGet(-delivered);
+                }
+            }
+        }
+    }
+}
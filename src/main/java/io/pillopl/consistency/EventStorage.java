@@ -0,0 +1,218 @@
+package io.pillopl.consistency;
+
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntToLongFunction;
+import java.util.stream.Stream;
+
+// Where EventStore keeps streams. Appends are already version checked by
+// EventStore and, unless the storage appends concurrently, serialized in
+// the order of their positions in the global log.
+interface EventStorage {
+    int version(String streamId);
+
+    EventStream read(String streamId);
+
+    // Versions start at 1, at most maxCount events from fromVersion on
+    List<EventEnvelope> read(String streamId, int fromVersion, int maxCount);
+
+    // Newest first, fromVersion past the stream end reads from its last event
+    List<EventEnvelope> readBackward(String streamId, int fromVersion, int maxCount);
+
+    void append(String streamId, List<EventEnvelope> events);
+
+    // Storages that can't lose half of a multi-stream append override it
+    default void appendAll(Map<String, List<EventEnvelope>> events) {
+        events.forEach(this::append);
+    }
+
+    // Storages doing I/O per append, e.g. a database round trip, take
+    // appends of different streams concurrently. EventStore then only gives
+    // out positions under its commit lock, so appends may land out of order
+    // and one failing after that leaves a gap in the global log.
+    default boolean appendsConcurrently() {
+        return false;
+    }
+
+    // Past the last position stored
+    long nextPosition();
+
+    // Events from the first position at or after fromPosition on
+    List<EventEnvelope> readAll(long fromPosition, int maxCount);
+
+    // Re-encodes events of an older schema among count positions from
+    // fromPosition on, returns how many it rewrote. Storages that only ever
+    // hold events encoded by this process have nothing to rewrite.
+    default int rewriteOutdated(long fromPosition, int count) {
+        return 0;
+    }
+
+    // Streams the storage starts with, EventStore learns about the ones it
+    // appends to itself. Only storages loaded from elsewhere have any.
+    default Stream<String> streamIds() {
+        return Stream.empty();
+    }
+
+    static List<EventEnvelope> inPositionOrder(Map<String, List<EventEnvelope>> events) {
+        var ordered = new ArrayList<EventEnvelope>();
+        events.values().forEach(ordered::addAll);
+        ordered.sort(Comparator.comparingLong(event -> event.metadata().position()));
+        return ordered;
+    }
+
+    // Index of the first event at or after the position in a log kept in
+    // position order. Positions count up from the first one unless the log
+    // has gaps, so that guess is checked before a binary search.
+    static int indexOf(long position, int size, IntToLongFunction positionAt) {
+        if (size == 0 || position <= positionAt.applyAsLong(0)) {
+            return 0;
+        }
+        if (positionAt.applyAsLong(size - 1) < position) {
+            return size;
+        }
+        var guess = position - positionAt.applyAsLong(0);
+        if (guess < size && positionAt.applyAsLong((int) guess) == position) {
+            return (int) guess;
+        }
+        var low = 0;
+        var high = size - 1;
+        while (low < high) {
+            var middle = (low + high) >>> 1;
+            if (positionAt.applyAsLong(middle) < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
+
+// Thrown by storages that detect a concurrent append on their own,
+// e.g. through a unique constraint shared by several processes.
+class StreamVersionConflict extends RuntimeException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String streamId;
+
+    StreamVersionConflict(String streamId, Throwable cause) {
+        super("Concurrent append to " + streamId, cause);
+        this.streamId = streamId;
+    }
+
+    String streamId() {
+        return streamId;
+    }
+}
+
+class InMemoryEventStorage implements EventStorage {
+    private final Map<String, AppendOnlyList<EventEnvelope>> streams = new ConcurrentHashMap<>();
+    private final AppendOnlyList<EventEnvelope> all = new AppendOnlyList<>();
+
+    @Override
+    public int version(String streamId) {
+        var stream = streams.get(streamId);
+        return stream != null ? stream.size() : 0;
+    }
+
+    @Override
+    public EventStream read(String streamId) {
+        return new EventStream(streamId, read(streamId, 1, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<EventEnvelope> read(String streamId, int fromVersion, int maxCount) {
+        var stream = streams.get(streamId);
+        return stream != null ? stream.range(Math.max(0, fromVersion - 1), maxCount) : List.of();
+    }
+
+    @Override
+    public List<EventEnvelope> readBackward(String streamId, int fromVersion, int maxCount) {
+        var stream = streams.get(streamId);
+        return stream != null ? stream.rangeBackward(fromVersion - 1, maxCount) : List.of();
+    }
+
+    @Override
+    public void append(String streamId, List<EventEnvelope> events) {
+        appendAll(Map.of(streamId, events));
+    }
+
+    // Events come grouped by stream, the global log takes them by position
+    @Override
+    public void appendAll(Map<String, List<EventEnvelope>> events) {
+        for (var event : EventStorage.inPositionOrder(events)) {
+            streams.computeIfAbsent(event.metadata().streamId(), id -> new AppendOnlyList<>()).add(event);
+            all.add(event);
+        }
+    }
+
+    @Override
+    public long nextPosition() {
+        var size = all.size();
+        return size > 0 ? positionAt(size - 1) + 1 : 0;
+    }
+
+    @Override
+    public List<EventEnvelope> readAll(long fromPosition, int maxCount) {
+        return all.range(EventStorage.indexOf(fromPosition, all.size(), this::positionAt), maxCount);
+    }
+
+    private long positionAt(int index) {
+        return all.get(index).metadata().position();
+    }
+}
+
+// Single writer, lock-free readers, size is published after the item.
+class AppendOnlyList<T> {
+    private volatile Object[] items = new Object[16];
+    private volatile int size;
+
+    void add(T item) {
+        var current = items;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            items = current;
+        }
+        current[size] = item;
+        size = size + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        return (T) items[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    List<T> range(int from, int maxCount) {
+        var to = (int) Math.min(size, (long) from + maxCount);
+        var current = items;
+        var result = new ArrayList<T>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            result.add((T) current[i]);
+        }
+        return result;
+    }
+
+    // From index from (or the last item) down to the first one
+    @SuppressWarnings("unchecked")
+    List<T> rangeBackward(int from, int maxCount) {
+        var start = Math.min(size - 1, from);
+        var current = items;
+        var to = (int) Math.max(-1, (long) start - maxCount);
+        var result = new ArrayList<T>(Math.max(0, start - to));
+        for (int i = start; i > to; i--) {
+            result.add((T) current[i]);
+        }
+        return result;
+    }
+}
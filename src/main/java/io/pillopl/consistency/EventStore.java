@@ -2,64 +2,579 @@ package io.pillopl.consistency;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class EventStore {
-    public final List<Consumer<Object>> subscribers = new ArrayList<>();
-    private final DatabaseCollection<EventStream> streams = Database.collection(EventStream.class);
+public class EventStore implements AutoCloseable {
+    private static final int shardCount = 64;
+
+    private final EventStorage streams;
+    private final ReentrantLock[] shards = new ReentrantLock[shardCount];
+    // Shards only guard version checks, positions in the global log
+    // are given out in commit order.
+    private final ReentrantLock commit = new ReentrantLock();
+    private final LogPositions positions;
+    private final MonotonicClock clock = new MonotonicClock();
+    private final EventPublisher publisher;
+    private final Map<String, NavigableSet<String>> categories = new ConcurrentHashMap<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile Subscription[][] routes = new Subscription[0][];
+    private volatile boolean storedStreamsIndexed;
+
+    private final Metrics metrics;
+    private final Histogram appendLatency;
+    private final Histogram eventsPerAppend;
+    private final Counter appendConflicts;
+    private final Histogram eventsPerRead;
+    private final HotKeys contendedStreams;
+
+    public EventStore() {
+        this(Metrics.disabled());
+    }
+
+    EventStore(Metrics metrics) {
+        this(new InMemoryEventStorage(), metrics);
+    }
+
+    EventStore(EventStorage streams, Metrics metrics) {
+        this.streams = streams;
+        this.positions = new LogPositions(streams.nextPosition());
+        var end = positions.end();
+        if (end > 0) {
+            streams.readAll(Math.max(0, end - 1), 1).forEach(last -> clock.advanceTo(last.metadata().occurredAt()));
+        }
+        this.publisher = new EventPublisher(this::readAll);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ReentrantLock();
+        }
+        this.metrics = metrics;
+        this.appendLatency = metrics.histogram("eventStore.append.latencyNanos");
+        this.eventsPerAppend = metrics.histogram("eventStore.append.events");
+        this.appendConflicts = metrics.counter("eventStore.append.conflicts");
+        this.eventsPerRead = metrics.histogram("eventStore.read.events");
+        this.contendedStreams = metrics.hotKeys("eventStore.streams");
+    }
 
     <T> List<T> readEvents(Class<T> eventType, String streamId) {
-        return existingEventStreamOrEmpty(streamId)
-            .eventsOfType(eventType);
+        var stream = streams.read(streamId);
+        eventsPerRead.record(stream.version());
+
+        return stream.eventsOfType(eventType);
+    }
+
+    // A page of a stream, costs only the events read
+    List<EventEnvelope> readEvents(String streamId, int fromVersion, int maxCount) {
+        var events = streams.read(streamId, fromVersion, maxCount);
+        eventsPerRead.record(events.size());
+
+        return events;
+    }
+
+    // Newest first, e.g. readEventsBackward(id, Integer.MAX_VALUE, 10) for the last 10
+    List<EventEnvelope> readEventsBackward(String streamId, int fromVersion, int maxCount) {
+        var events = streams.readBackward(streamId, fromVersion, maxCount);
+        eventsPerRead.record(events.size());
+
+        return events;
+    }
+
+    // A page of the global log, in position order. Stops before the first
+    // append still being written, so a reader never skips one landing late.
+    List<EventEnvelope> readAll(long fromPosition, int maxCount) {
+        return positions.upToEnd(streams.readAll(fromPosition, maxCount));
+    }
+
+    // Everything before it is written
+    long nextPosition() {
+        return positions.end();
     }
 
     <T> Result appendToStream(String streamId, List<T> events, int expectedVersion) {
-        var version = new AtomicInteger(expectedVersion);
+        return appendToStream(streamId, events, ExpectedVersion.exactly(expectedVersion));
+    }
+
+    <T> Result appendToStream(String streamId, List<T> events, ExpectedVersion expectedVersion) {
+        return appendToStreams(
+            List.of(new StreamAppend(streamId, events, expectedVersion))
+        );
+    }
+
+    // All streams are checked and written under a single locking round,
+    // either all of them get appended or none. The commit lock is held for
+    // the write too, unless the storage appends concurrently.
+    Result appendToStreams(List<StreamAppend> appends) {
+        var startedAt = metrics.isEnabled() ? System.nanoTime() : 0;
+        var locks = shardsOf(appends);
+        var newEvents = new ArrayList<EventEnvelope>();
+        var concurrent = streams.appendsConcurrently();
+
+        locks.forEach(ReentrantLock::lock);
+        try {
+            var versions = new HashMap<String, Integer>();
+            var startingVersions = new int[appends.size()];
+
+            for (int i = 0; i < appends.size(); i++) {
+                var append = appends.get(i);
+                contendedStreams.attempted(append.streamId());
+                var version = versions.computeIfAbsent(
+                    append.streamId(),
+                    streams::version
+                );
+                if (!append.expectedVersion().matches(version)) {
+                    appendConflicts.increment();
+                    contendedStreams.conflicted(append.streamId());
+                    return Result.Failure;
+                }
+                startingVersions[i] = version;
+                versions.put(append.streamId(), version + append.events().size());
+            }
+
+            var count = 0;
+            for (var append : appends) {
+                count += append.events().size();
+            }
+            var envelopes = new LinkedHashMap<String, List<EventEnvelope>>();
+            long first;
+            var written = false;
 
-        var stream = existingEventStreamOrEmpty(streamId);
+            commit.lock();
+            try {
+                first = positions.reserve(count);
+                var position = first;
+                var occurredAt = clock.now();
 
-        var newEvents = events.stream().map(e ->
-            EventEnvelope.from(streamId, e, version.incrementAndGet())
-        ).toList();
+                for (int i = 0; i < appends.size(); i++) {
+                    var append = appends.get(i);
+                    var version = startingVersions[i];
+                    var streamEnvelopes = envelopes.computeIfAbsent(append.streamId(), id -> new ArrayList<>());
 
-        var result = streams.save(streamId, stream.append(newEvents), expectedVersion);
+                    for (var event : append.events()) {
+                        streamEnvelopes.add(
+                            EventEnvelope.from(append.streamId(), event, ++version, position++, occurredAt)
+                        );
+                    }
+                }
+                if (!concurrent) {
+                    written = write(envelopes, first, count);
+                }
+            } finally {
+                commit.unlock();
+            }
+            if (concurrent) {
+                written = write(envelopes, first, count);
+            }
+            if (!written) {
+                return Result.Failure;
+            }
+
+            for (int i = 0; i < appends.size(); i++) {
+                if (startingVersions[i] == 0 && !appends.get(i).events().isEmpty()) {
+                    indexCategory(appends.get(i).streamId());
+                }
+            }
+            envelopes.values().forEach(newEvents::addAll);
+        } finally {
+            locks.reversed().forEach(ReentrantLock::unlock);
+        }
 
-        if(result == Result.Success) {
-            // Note: this typically happens asynchronously
-            // to not impact accidentally storing events
-            publish(newEvents);
+        if (metrics.isEnabled()) {
+            appendLatency.record(System.nanoTime() - startedAt);
+            eventsPerAppend.record(newEvents.size());
         }
 
-        return result;
+        // Note: this typically happens asynchronously
+        // to not impact accidentally storing events
+        publish(newEvents);
+
+        return Result.Success;
+    }
+
+    // Written positions stop being in flight whether the write went through
+    // or not, a failed one is a gap readers step over.
+    private boolean write(Map<String, List<EventEnvelope>> envelopes, long first, int count) {
+        try {
+            streams.appendAll(envelopes);
+            return true;
+        } catch (StreamVersionConflict conflict) {
+            appendConflicts.increment();
+            contendedStreams.conflicted(conflict.streamId());
+            return false;
+        } finally {
+            positions.written(first, count);
+        }
+    }
+
+    // Applies events appended by another store, keeping their positions and
+    // versions, so a standby ends up with the very same log. Events have to
+    // come in position order, gaps of the primary's log stay gaps. Subscribers
+    // are notified as for local appends, which keeps projections on the
+    // standby warm.
+    void replicate(List<EventEnvelope> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        commit.lock();
+        try {
+            var position = positions.end();
+            var versions = new HashMap<String, Integer>();
+            var envelopes = new LinkedHashMap<String, List<EventEnvelope>>();
+
+            for (var event : events) {
+                var metadata = event.metadata();
+                if (metadata.position() < position) {
+                    throw new IllegalStateException("Expected position " + position + " or later but got " + metadata.position());
+                }
+                position = metadata.position() + 1;
+                var version = versions.computeIfAbsent(metadata.streamId(), streams::version);
+                if (metadata.version() != version + 1) {
+                    throw new IllegalStateException("Expected version " + (version + 1) + " of " + metadata.streamId() + " but got " + metadata.version());
+                }
+                versions.put(metadata.streamId(), metadata.version());
+                clock.advanceTo(metadata.occurredAt());
+                envelopes.computeIfAbsent(metadata.streamId(), id -> new ArrayList<>()).add(event);
+            }
+
+            streams.appendAll(envelopes);
+            positions.replicated(position);
+            for (var event : events) {
+                if (event.metadata().version() == 1) {
+                    indexCategory(event.metadata().streamId());
+                }
+            }
+        } finally {
+            commit.unlock();
+        }
+
+        publish(events);
+    }
+
+    // Stream ids of a category in order, page by passing the last id seen,
+    // null to start from the beginning.
+    List<String> streamIds(String category, String afterStreamId, int limit) {
+        indexStoredStreams();
+        var streamIds = categories.getOrDefault(category, Collections.emptyNavigableSet());
+        var page = afterStreamId == null ? streamIds : streamIds.tailSet(afterStreamId, false);
+
+        return page.stream().limit(limit).toList();
+    }
+
+    Stream<String> streamIds(String category, boolean parallel) {
+        indexStoredStreams();
+        var streamIds = categories.getOrDefault(category, Collections.emptyNavigableSet());
+        return StreamSupport.stream(streamIds.spliterator(), parallel);
+    }
+
+    // Streams the storage started with are indexed on the first lookup,
+    // so opening a store doesn't wait for it.
+    private void indexStoredStreams() {
+        if (storedStreamsIndexed) {
+            return;
+        }
+        synchronized (categories) {
+            if (!storedStreamsIndexed) {
+                streams.streamIds().forEach(this::indexCategory);
+                storedStreamsIndexed = true;
+            }
+        }
+    }
+
+    private void indexCategory(String streamId) {
+        var separator = streamId.indexOf(':');
+        var category = separator < 0 ? streamId : streamId.substring(0, separator);
+
+        categories.computeIfAbsent(category, c -> new ConcurrentSkipListSet<>())
+            .add(streamId);
+    }
+
+    // Pull based alternative to subscribe, events are read from the global
+    // log when a subscriber requests them, starting at the given position.
+    Flow.Publisher<EventEnvelope> publisher(EventFilter filter, long fromPosition) {
+        return publisher.from(filter, fromPosition);
     }
 
     public void subscribe(Consumer<Object> subscriber) {
-        subscribers.add(subscriber);
+        subscribe(Object.class, subscriber);
+    }
+
+    <T> void subscribe(Class<T> eventType, Consumer<T> subscriber) {
+        subscribe(eventType, null, event -> subscriber.accept(eventType.cast(event.data())));
+    }
+
+    // Category is the stream id prefix, e.g. "Card" or "BillingCycle",
+    // null means events from all streams.
+    synchronized void subscribe(
+        Class<?> eventType,
+        String category,
+        Consumer<EventEnvelope> subscriber
+    ) {
+        subscriptions.add(new Subscription(
+            eventType,
+            category,
+            subscriber,
+            SubscriberMetrics.of(metrics, subscriptions.size())
+        ));
+        routes = routingTable(EventTypes.count());
+    }
+
+    // Stops delivering to publisher subscribers. Handlers passed to
+    // subscribe run on the appending threads and have nothing to stop.
+    @Override
+    public void close() {
+        publisher.close();
     }
 
     private void publish(List<EventEnvelope> events){
-        for (Consumer<Object> handler : subscribers) {
-            for (var event : events) {
-                handler.accept(event.data());
+        publisher.signal();
+
+        for (var event : events) {
+            for (var subscription : routesFor(event.metadata().eventType())) {
+                if (subscription.category() != null
+                    && !isInCategory(event.metadata().streamId(), subscription.category())) {
+                    continue;
+                }
+                dispatch(subscription, event);
+            }
+        }
+    }
+
+    private void dispatch(Subscription subscription, EventEnvelope event) {
+        if (!metrics.isEnabled()) {
+            subscription.handler().accept(event);
+            return;
+        }
+        var startedAt = System.nanoTime();
+        subscription.metrics().lagMillis().record(
+            System.currentTimeMillis() - event.metadata().occurredAt().toEpochMilli()
+        );
+        subscription.handler().accept(event);
+        subscription.metrics().dispatchLatency().record(System.nanoTime() - startedAt);
+    }
+
+    private Subscription[] routesFor(int eventType) {
+        var current = routes;
+        if (eventType < current.length) {
+            return current[eventType];
+        }
+        synchronized (this) {
+            if (eventType >= routes.length) {
+                routes = routingTable(eventType + 1);
             }
+            return routes[eventType];
         }
     }
 
-    private EventStream existingEventStreamOrEmpty(String streamId) {
-        return streams.find(streamId)
-            .orElseGet(() -> EventStream.empty(streamId));
+    private Subscription[][] routingTable(int eventTypes) {
+        var table = new Subscription[eventTypes][];
+        for (int eventType = 0; eventType < eventTypes; eventType++) {
+            var id = eventType;
+            table[eventType] = subscriptions.stream()
+                .filter(subscription -> EventTypes.isA(id, subscription.eventType()))
+                .toArray(Subscription[]::new);
+        }
+        return table;
+    }
+
+    static boolean isInCategory(String streamId, String category) {
+        return streamId.length() > category.length()
+            && streamId.charAt(category.length()) == ':'
+            && streamId.startsWith(category);
+    }
+
+    private List<ReentrantLock> shardsOf(List<StreamAppend> appends) {
+        var indexes = new TreeSet<Integer>();
+        for (var append : appends) {
+            indexes.add(shardOf(append.streamId()));
+        }
+        return indexes.stream().map(index -> shards[index]).toList();
+    }
+
+    // Stream ids look like "Category:entityId:...", we shard by the entity
+    // id, so a card and its billing cycles always land in the same shard.
+    static int shardOf(String streamId) {
+        return Math.floorMod(entityHash(streamId), shardCount);
+    }
+
+    static int entityHash(String streamId) {
+        var start = streamId.indexOf(':') + 1;
+        var end = streamId.indexOf(':', start);
+        if (end < 0) {
+            end = streamId.length();
+        }
+        var hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + streamId.charAt(i);
+        }
+        return hash;
+    }
+}
+
+// Positions of the global log given out to appends still being written.
+// The log is readable up to the first of them, so a reader never steps past
+// an append that lands after a later one.
+final class LogPositions {
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private volatile long next;
+
+    LogPositions(long next) {
+        this.next = next;
+    }
+
+    // Callers reserve one at a time, e.g. under EventStore's commit lock.
+    // The reservation is in flight before next moves past it, so end()
+    // reading next first can't miss it.
+    long reserve(int count) {
+        var first = next;
+        if (count > 0) {
+            inFlight.add(first);
+            next = first + count;
+        }
+        return first;
+    }
+
+    void written(long first, int count) {
+        if (count > 0) {
+            inFlight.remove(first);
+        }
+    }
+
+    void replicated(long position) {
+        next = position;
+    }
+
+    long end() {
+        var end = next;
+        var oldest = inFlight.ceiling(Long.MIN_VALUE);
+        return oldest != null ? Math.min(oldest, end) : end;
+    }
+
+    List<EventEnvelope> upToEnd(List<EventEnvelope> events) {
+        if (events.isEmpty()) {
+            return events;
+        }
+        var end = end();
+        if (events.getLast().metadata().position() < end) {
+            return events;
+        }
+        var cutOff = events.size();
+        while (cutOff > 0 && events.get(cutOff - 1).metadata().position() >= end) {
+            cutOff--;
+        }
+        return events.subList(0, cutOff);
+    }
+}
+
+record Subscription(
+    Class<?> eventType,
+    String category,
+    Consumer<EventEnvelope> handler,
+    SubscriberMetrics metrics
+) {
+}
+
+record SubscriberMetrics(Histogram dispatchLatency, Histogram lagMillis) {
+    static SubscriberMetrics of(Metrics metrics, int subscriber) {
+        var name = "eventStore.subscriber." + subscriber;
+        return new SubscriberMetrics(
+            metrics.histogram(name + ".dispatchLatencyNanos"),
+            metrics.histogram(name + ".lagMillis")
+        );
+    }
+}
+
+record StreamAppend(String streamId, List<?> events, ExpectedVersion expectedVersion) {
+    StreamAppend(String streamId, List<?> events, int expectedVersion) {
+        this(streamId, events, ExpectedVersion.exactly(expectedVersion));
+    }
+}
+
+// What the stream has to look like for an append to go through. Stream
+// version is its event count, so "no stream" is the same as version 0.
+// Only built through the factories, so the modes can't be mixed up with
+// a negative version.
+final class ExpectedVersion {
+    private static final int anyVersion = -1;
+    private static final int existingStream = -2;
+    private static final ExpectedVersion any = new ExpectedVersion(anyVersion);
+    private static final ExpectedVersion streamExists = new ExpectedVersion(existingStream);
+    private static final ExpectedVersion noStream = new ExpectedVersion(0);
+
+    private final int version;
+
+    private ExpectedVersion(int version) {
+        this.version = version;
+    }
+
+    static ExpectedVersion any() {
+        return any;
+    }
+
+    static ExpectedVersion streamExists() {
+        return streamExists;
+    }
+
+    static ExpectedVersion noStream() {
+        return noStream;
+    }
+
+    static ExpectedVersion exactly(int version) {
+        if (version < 0) {
+            throw new IllegalArgumentException("Stream version can't be negative: " + version);
+        }
+        return version == 0 ? noStream : new ExpectedVersion(version);
+    }
+
+    boolean matches(int currentVersion) {
+        return switch (version) {
+            case anyVersion -> true;
+            case existingStream -> currentVersion > 0;
+            default -> currentVersion == version;
+        };
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ExpectedVersion that && version == that.version;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(version);
+    }
+
+    @Override
+    public String toString() {
+        return switch (version) {
+            case anyVersion -> "any";
+            case existingStream -> "streamExists";
+            default -> "exactly(" + version + ")";
+        };
     }
 }
 
 record EventStream(String id, List<EventEnvelope> events) {
     static EventStream empty(String id) {
-        return new EventStream(null, new ArrayList<>());
+        return new EventStream(id, List.of());
+    }
+
+    int version() {
+        return events.size();
     }
 
     EventStream append(List<EventEnvelope> events) {
@@ -68,9 +583,8 @@ record EventStream(String id, List<EventEnvelope> events) {
 
     <Event> List<Event > eventsOfType(Class<Event> eventType) {
         return events().stream()
-            .map(EventEnvelope::data)
-            .filter(eventType::isInstance)
-            .map(event -> (Event) event)
+            .filter(event -> EventTypes.isA(event.metadata().eventType(), eventType))
+            .map(event -> (Event) event.data())
             .toList();
     }
 
@@ -90,20 +604,30 @@ record EventStream(String id, List<EventEnvelope> events) {
 
 record EventMetadata(
     String streamId,
-    String eventType,
+    int eventType,
     UUID eventId,
     int version,
+    long position,
     Instant occurredAt
 ) {
-    public static <T> EventMetadata from(Class<T> eventType, String streamId, int version) {
+    public static <T> EventMetadata from(Class<T> eventType, String streamId, int version, long position) {
+        return from(eventType, streamId, version, position, Instant.now());
+    }
+
+    static <T> EventMetadata from(Class<T> eventType, String streamId, int version, long position, Instant occurredAt) {
         return new EventMetadata(
             streamId,
-            eventType.getTypeName(),
+            EventTypes.idOf(eventType),
             UUID.randomUUID(),
             version,
-            Instant.now()
+            position,
+            occurredAt
         );
     }
+
+    String eventTypeName() {
+        return EventTypes.nameOf(eventType);
+    }
 }
 
 record EventEnvelope(
@@ -111,10 +635,30 @@ record EventEnvelope(
     EventMetadata metadata
 ) {
 
-    public static EventEnvelope from(String streamId, Object event, int version) {
+    public static EventEnvelope from(String streamId, Object event, int version, long position) {
+        return from(streamId, event, version, position, Instant.now());
+    }
+
+    static EventEnvelope from(String streamId, Object event, int version, long position, Instant occurredAt) {
         return new EventEnvelope(
             event,
-            EventMetadata.from(event.getClass(), streamId, version)
+            EventMetadata.from(event.getClass(), streamId, version, position, occurredAt)
         );
     }
 }
+
+// Wall clock that never goes back, so occurredAt grows with positions even
+// when the system clock is set back or the store was written by a node whose
+// clock was ahead. Until the system clock catches up, the last time is
+// handed out again.
+final class MonotonicClock {
+    private final AtomicReference<Instant> last = new AtomicReference<>(Instant.EPOCH);
+
+    Instant now() {
+        return advanceTo(Instant.now());
+    }
+
+    Instant advanceTo(Instant instant) {
+        return last.accumulateAndGet(instant, (previous, next) -> next.isAfter(previous) ? next : previous);
+    }
+}
@@ -0,0 +1,108 @@
+package io.pillopl.consistency;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Gives every event type a small int id. Permitted subtypes of the sealed
+// event interfaces are registered up front in the listed order, so their
+// ids are stable and can be stored. New event types must be appended
+// at the end. Other types get the next free id the first time they're seen.
+class EventTypes {
+    private static volatile Class<?>[] types = new Class<?>[0];
+    private static final Map<Class<?>, Subtypes> subtypes = new ConcurrentHashMap<>();
+    private static final ClassValue<Integer> ids = new ClassValue<>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return register(type);
+        }
+    };
+
+    static {
+        registerSealed(
+            BillingCycleEvent.class,
+            BillingCycleEvent.CycleOpened.class,
+            BillingCycleEvent.CardRepaid.class,
+            BillingCycleEvent.CardWithdrawn.class,
+            BillingCycleEvent.CycleClosed.class
+        );
+        registerSealed(
+            VirtualCreditCardEvent.class,
+            VirtualCreditCardEvent.CardCreated.class,
+            VirtualCreditCardEvent.LimitAssigned.class,
+            VirtualCreditCardEvent.CardDeactivated.class,
+            VirtualCreditCardEvent.CycleOpened.class,
+            VirtualCreditCardEvent.CycleClosed.class
+        );
+        registerSealed(
+            OwnershipEvent.class,
+            OwnershipEvent.AccessGranted.class,
+            OwnershipEvent.AccessRevoked.class
+        );
+    }
+
+    static int idOf(Class<?> type) {
+        return ids.get(type);
+    }
+
+    static Class<?> typeOf(int id) {
+        return types[id];
+    }
+
+    static String nameOf(int id) {
+        return typeOf(id).getTypeName();
+    }
+
+    static boolean isA(int id, Class<?> supertype) {
+        var known = subtypes.get(supertype);
+        if (known == null || id >= known.typesChecked()) {
+            known = subtypesOf(supertype);
+            subtypes.put(supertype, known);
+        }
+        return known.ids().get(id);
+    }
+
+    static int count() {
+        return types.length;
+    }
+
+    private static void registerSealed(Class<?> sealedType, Class<?>... inOrder) {
+        var listed = Arrays.asList(inOrder);
+        for (var type : sealedType.getPermittedSubclasses()) {
+            if (!listed.contains(type)) {
+                throw new IllegalStateException(
+                    type.getTypeName() + " has to be listed in EventTypes"
+                );
+            }
+        }
+        listed.forEach(EventTypes::idOf);
+    }
+
+    private static synchronized int register(Class<?> type) {
+        var known = types;
+        for (int id = 0; id < known.length; id++) {
+            if (known[id] == type) {
+                return id;
+            }
+        }
+        var updated = Arrays.copyOf(known, known.length + 1);
+        updated[known.length] = type;
+        types = updated;
+        return known.length;
+    }
+
+    private static Subtypes subtypesOf(Class<?> supertype) {
+        var known = types;
+        var ids = new BitSet(known.length);
+        for (int id = 0; id < known.length; id++) {
+            if (supertype.isAssignableFrom(known[id])) {
+                ids.set(id);
+            }
+        }
+        return new Subtypes(ids, known.length);
+    }
+
+    private record Subtypes(BitSet ids, int typesChecked) {
+    }
+}
@@ -0,0 +1,206 @@
+package io.pillopl.consistency;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Rewrites the fields of an event from the layout of the schema version it
+// is registered for into the layout of the next version. Type id and the
+// version byte are handled by EventCodec, only fields are read and written.
+interface Upcaster {
+    void upcast(ByteBuffer from, ByteBuffer to);
+}
+
+// Upcasters by event type id and schema version, one registry per storage
+// that may hold older events. Events written with the current schema never
+// get here, older ones go through the chain of steps up to the current
+// version. Chains are composed on first use and reused, upcast events are
+// cached by their id.
+final class EventUpcasters {
+    // Registry of storages that only hold events of the current schema
+    static final EventUpcasters none = new EventUpcasters(1);
+
+    private final Map<Long, Upcaster> steps = new ConcurrentHashMap<>();
+    private final Map<Long, List<Upcaster>> chains = new ConcurrentHashMap<>();
+    private final UpcastCache upcasted;
+
+    EventUpcasters() {
+        this(16 * 1024);
+    }
+
+    EventUpcasters(int cacheCapacity) {
+        this.upcasted = new UpcastCache(cacheCapacity);
+    }
+
+    void register(Class<?> eventType, int fromVersion, Upcaster upcaster) {
+        if (this == none) {
+            throw new UnsupportedOperationException("Upcasters have to be registered in a storage's own registry");
+        }
+        if (fromVersion >= EventCodec.schemaVersion) {
+            throw new IllegalArgumentException("Schema version " + fromVersion + " is not older than the current one");
+        }
+        steps.put(keyOf(EventTypes.idOf(eventType), fromVersion), upcaster);
+        chains.clear();
+    }
+
+    // Event of an older schema starting at the buffer's position, leaves the
+    // buffer right after it whether it was upcast now or found in the cache.
+    Object decode(UUID eventId, ByteBuffer buffer) {
+        var cached = upcasted.get(eventId);
+        if (cached != null) {
+            buffer.position(buffer.position() + cached.encodedLength());
+            return cached.event();
+        }
+        var start = buffer.position();
+        var event = EventCodec.decodeEvent(buffer, this);
+        upcasted.put(eventId, event, buffer.position() - start);
+        return event;
+    }
+
+    // Fields of the event in the current layout, the steps read the old
+    // fields from the buffer and leave it right after them.
+    ByteBuffer upcast(int eventType, int version, ByteBuffer fields) {
+        var chain = chains.computeIfAbsent(keyOf(eventType, version), key -> chainOf(eventType, version));
+        var from = fields;
+        for (var step : chain) {
+            from = apply(step, from);
+        }
+        return from;
+    }
+
+    // Upcasts are rare, stored events get rewritten and read ones cached,
+    // so each step writes to a buffer of its own, grown until the layout fits.
+    private static ByteBuffer apply(Upcaster step, ByteBuffer from) {
+        var start = from.position();
+        for (var size = 256; ; size *= 2) {
+            var to = ByteBuffer.allocate(size);
+            try {
+                step.upcast(from, to);
+                return to.flip();
+            } catch (BufferOverflowException tooSmall) {
+                from.position(start);
+            }
+        }
+    }
+
+    private List<Upcaster> chainOf(int eventType, int version) {
+        var chain = new ArrayList<Upcaster>();
+        for (int step = version; step < EventCodec.schemaVersion; step++) {
+            var upcaster = steps.get(keyOf(eventType, step));
+            if (upcaster == null) {
+                throw new IllegalArgumentException(
+                    "No upcaster of " + EventTypes.nameOf(eventType) + " from schema version " + step
+                );
+            }
+            chain.add(upcaster);
+        }
+        return List.copyOf(chain);
+    }
+
+    private static long keyOf(int eventType, int version) {
+        return (long) eventType << 8 | version;
+    }
+}
+
+// Upcast events by their id, so streams that are read over and over pay for
+// upcasting once. Direct mapped, a colliding event just replaces the older
+// one, events never change so an entry can't be stale. Entries remember how
+// long the stored event is, so a hit can skip it in the buffer.
+class UpcastCache {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    UpcastCache(int capacity) {
+        var size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    Entry get(UUID eventId) {
+        var entry = slots.get(slotOf(eventId));
+        return entry != null && entry.is(eventId) ? entry : null;
+    }
+
+    void put(UUID eventId, Object event, int encodedLength) {
+        slots.set(slotOf(eventId), new Entry(
+            eventId.getMostSignificantBits(), eventId.getLeastSignificantBits(), event, encodedLength
+        ));
+    }
+
+    private int slotOf(UUID id) {
+        var hash = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    record Entry(long high, long low, Object event, int encodedLength) {
+        boolean is(UUID id) {
+            return high == id.getMostSignificantBits() && low == id.getLeastSignificantBits();
+        }
+    }
+}
+
+// Migrates events stored with an older schema in the background, a batch of
+// positions at a time with a pause in between, so reads of hot streams stop
+// going through upcasters. Storages that only keep the current schema have
+// nothing to rewrite.
+class EventRewriter {
+    private final EventStorage storage;
+    private final int batchSize;
+    private final Duration pause;
+    private final Histogram rewrittenPerBatch;
+    private volatile boolean stopped;
+    private Thread worker;
+
+    EventRewriter(EventStorage storage) {
+        this(storage, 1_000, Duration.ofMillis(10), Metrics.disabled());
+    }
+
+    EventRewriter(EventStorage storage, int batchSize, Duration pause, Metrics metrics) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+        this.pause = pause;
+        this.rewrittenPerBatch = metrics.histogram("eventRewriter.rewrittenPerBatch");
+    }
+
+    void start() {
+        worker = Thread.ofVirtual().name("event-rewriter").start(this::rewriteAll);
+    }
+
+    void stop() {
+        stopped = true;
+        if (worker != null) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Events appended meanwhile are written with the current schema already,
+    // so one pass up to the position seen at the start is enough.
+    long rewriteAll() {
+        var total = 0L;
+        var end = storage.nextPosition();
+        for (var position = 0L; position < end && !stopped; position += batchSize) {
+            var count = storage.rewriteOutdated(position, (int) Math.min(batchSize, end - position));
+            rewrittenPerBatch.record(count);
+            total += count;
+            if (count > 0 && !pause.isZero()) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,176 @@
+package io.pillopl.consistency;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Highest processed version of a stream plus which of the 64 versions
+// below it were processed too (bit 0 is the version itself). Events of one
+// stream can be published out of order by concurrent appends, so a single
+// "last version" would skip the late ones. Anything older than the window
+// is taken as processed.
+record StreamCheckpoint(int version, long processed) {
+    static final StreamCheckpoint none = new StreamCheckpoint(0, 0);
+    static final int window = Long.SIZE;
+    static final RecordCodec<StreamCheckpoint> codec = new RecordCodec<>() {
+        @Override
+        public void write(StreamCheckpoint checkpoint, DataOutput out) throws IOException {
+            out.writeInt(checkpoint.version());
+            out.writeLong(checkpoint.processed());
+        }
+
+        @Override
+        public StreamCheckpoint read(DataInput in) throws IOException {
+            return new StreamCheckpoint(in.readInt(), in.readLong());
+        }
+    };
+
+    boolean includes(int eventVersion) {
+        if (eventVersion > version) {
+            return false;
+        }
+        var distance = version - eventVersion;
+        return distance >= window || (processed >>> distance & 1) == 1;
+    }
+
+    StreamCheckpoint with(int eventVersion) {
+        if (eventVersion > version) {
+            var shift = eventVersion - version;
+            return new StreamCheckpoint(eventVersion, shift >= window ? 1 : processed << shift | 1);
+        }
+        var distance = version - eventVersion;
+        return distance >= window ? this : new StreamCheckpoint(version, processed | 1L << distance);
+    }
+}
+
+// Position in the global log a rebuild of a handler got to
+record RebuildCheckpoint(long position) {
+    static final RebuildCheckpoint none = new RebuildCheckpoint(0);
+    static final RecordCodec<RebuildCheckpoint> codec = new RecordCodec<>() {
+        @Override
+        public void write(RebuildCheckpoint checkpoint, DataOutput out) throws IOException {
+            out.writeLong(checkpoint.position());
+        }
+
+        @Override
+        public RebuildCheckpoint read(DataInput in) throws IOException {
+            return new RebuildCheckpoint(in.readLong());
+        }
+    };
+}
+
+// Which events a handler already processed, per source stream. Checkpoints
+// are kept in memory and written to the store every batchSize events, after
+// a restart up to a batch of events is handled again. Only a durable store
+// keeps them across restarts, see durable().
+class HandlerCheckpoints {
+    private final String handler;
+    private final DatabaseCollection<StreamCheckpoint> store;
+    private final DatabaseCollection<RebuildCheckpoint> rebuilds;
+    private final int batchSize;
+    private final Map<String, StreamCheckpoint> checkpoints = new ConcurrentHashMap<>();
+    private final Set<String> uncommitted = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger processedSinceCommit = new AtomicInteger();
+
+    HandlerCheckpoints(String handler, DatabaseCollection<StreamCheckpoint> store, int batchSize) {
+        this(handler, store, Database.collection(RebuildCheckpoint.class), batchSize);
+    }
+
+    HandlerCheckpoints(
+        String handler,
+        DatabaseCollection<StreamCheckpoint> store,
+        DatabaseCollection<RebuildCheckpoint> rebuilds,
+        int batchSize
+    ) {
+        this.handler = handler;
+        this.store = store;
+        this.rebuilds = rebuilds;
+        this.batchSize = batchSize;
+    }
+
+    // Recovers checkpoints logged to the directory and keeps logging there
+    static HandlerCheckpoints durable(String handler, Path directory, int batchSize, Metrics metrics) {
+        var store = Database.durableCollection(
+            StreamCheckpoint.class,
+            new CollectionLog<>(directory.resolve("streams"), StreamCheckpoint.codec),
+            metrics
+        );
+        var rebuilds = Database.durableCollection(
+            RebuildCheckpoint.class,
+            new CollectionLog<>(directory.resolve("rebuilds"), RebuildCheckpoint.codec),
+            metrics
+        );
+        return new HandlerCheckpoints(handler, store, rebuilds, batchSize);
+    }
+
+    boolean isProcessed(EventMetadata event) {
+        return checkpointOf(event.streamId()).includes(event.version());
+    }
+
+    void processed(EventMetadata event) {
+        checkpoints.compute(event.streamId(), (id, checkpoint) ->
+            (checkpoint != null ? checkpoint : stored(id)).with(event.version())
+        );
+        uncommitted.add(event.streamId());
+
+        if (processedSinceCommit.incrementAndGet() >= batchSize) {
+            commit();
+        }
+    }
+
+    synchronized void commit() {
+        processedSinceCommit.set(0);
+        for (var streamId : uncommitted) {
+            uncommitted.remove(streamId);
+            var checkpoint = checkpoints.get(streamId);
+            store.handle(keyOf(streamId), stored -> checkpoint, () -> StreamCheckpoint.none);
+        }
+    }
+
+    // Where the next rebuild of the handler starts, everything before
+    // was handled already
+    long rebuiltUpTo() {
+        return rebuilds.find(handler).orElse(RebuildCheckpoint.none).position();
+    }
+
+    // Checkpoints are committed first, so the position is only stored
+    // once everything handled before it is
+    void rebuilt(long position) {
+        commit();
+        var checkpoint = new RebuildCheckpoint(position);
+        rebuilds.handle(handler, stored -> stored.position() < position ? checkpoint : stored, () -> RebuildCheckpoint.none);
+    }
+
+    // Checkpoints kept in a store image, committed ones only
+    List<ImagedCollection<?>> imaged() {
+        return List.of(
+            new ImagedCollection<>(handler + ".streams", store, StreamCheckpoint.codec),
+            new ImagedCollection<>(handler + ".rebuilds", rebuilds, RebuildCheckpoint.codec)
+        );
+    }
+
+    // Commits what's left and waits for the stores to have it on disk
+    void close() {
+        commit();
+        store.close();
+        rebuilds.close();
+    }
+
+    private StreamCheckpoint checkpointOf(String streamId) {
+        return checkpoints.computeIfAbsent(streamId, this::stored);
+    }
+
+    private StreamCheckpoint stored(String streamId) {
+        return store.find(keyOf(streamId)).orElse(StreamCheckpoint.none);
+    }
+
+    private String keyOf(String streamId) {
+        return handler + "@" + streamId;
+    }
+}
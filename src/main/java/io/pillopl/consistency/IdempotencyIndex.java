@@ -0,0 +1,145 @@
+package io.pillopl.consistency;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+record IdempotencyKey(UUID value) {
+    static IdempotencyKey random() {
+        return new IdempotencyKey(UUID.randomUUID());
+    }
+}
+
+// A command's result and whether a retry with the same key gets it too.
+// Failures like version conflicts or rate limits may pass on a retry, so
+// they're retryable, rejections by business rules are decided.
+record Outcome(Result result, boolean remembered) {
+    static Outcome decided(Result result) {
+        return new Outcome(result, true);
+    }
+
+    static Outcome retryable(Result result) {
+        return new Outcome(result, result == Result.Success);
+    }
+}
+
+// Remembers results of commands by their idempotency key, so a retried
+// command gets the original result without running again. Keys live in two
+// generations: when the current one is older than the window or holds
+// capacity keys, it becomes the previous one and the old previous is dropped.
+// A key is kept for at least one window unless load forces an early rotation,
+// and there are never more than 2 * capacity keys. Looking a key up in both
+// generations and rotating them happen under one lock, held only for the
+// map operations, so a retry can't miss a key moving between generations.
+// A key is bound to the arguments of its command, reusing it with other
+// arguments is a client bug and fails instead of returning a stale result.
+class IdempotencyIndex {
+    private final Clock clock;
+    private final long windowMillis;
+    private final int capacity;
+    private final ReentrantLock lookup = new ReentrantLock();
+    private Generation current;
+    private Generation previous;
+
+    IdempotencyIndex() {
+        this(Clock.systemUTC(), Duration.ofMinutes(10), 100_000);
+    }
+
+    IdempotencyIndex(Clock clock, Duration window, int capacity) {
+        this.clock = clock;
+        this.windowMillis = window.toMillis();
+        this.capacity = capacity;
+        this.current = new Generation(clock.millis());
+        this.previous = new Generation(clock.millis());
+    }
+
+    Result execute(IdempotencyKey key, Object arguments, Supplier<Outcome> command) {
+        var pending = new Execution(arguments, new CompletableFuture<>());
+        Generation generation;
+        Execution earlier;
+        lookup.lock();
+        try {
+            generation = currentGeneration();
+            earlier = previous.executions.get(key);
+            if (earlier == null) {
+                earlier = generation.executions.putIfAbsent(key, pending);
+            }
+        } finally {
+            lookup.unlock();
+        }
+        if (earlier != null) {
+            if (!earlier.arguments().equals(arguments)) {
+                throw new IllegalArgumentException("Idempotency key " + key.value() + " reused with other arguments");
+            }
+            // a retry racing the original waits for it instead of running twice
+            return earlier.resultOfOriginal();
+        }
+
+        try {
+            var outcome = command.get();
+            if (!outcome.remembered()) {
+                generation.executions.remove(key, pending);
+            }
+            pending.result().complete(outcome.result());
+            return outcome.result();
+        } catch (RuntimeException | Error e) {
+            generation.executions.remove(key, pending);
+            pending.result().completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    int size() {
+        lookup.lock();
+        try {
+            return current.executions.size() + previous.executions.size();
+        } finally {
+            lookup.unlock();
+        }
+    }
+
+    private Generation currentGeneration() {
+        if (isFull(current)) {
+            previous = current;
+            current = new Generation(clock.millis());
+        }
+        return current;
+    }
+
+    private boolean isFull(Generation generation) {
+        return clock.millis() - generation.startedAt >= windowMillis
+            || generation.executions.size() >= capacity;
+    }
+
+    private record Execution(Object arguments, CompletableFuture<Result> result) {
+        // the original's exception as it was thrown, not wrapped by join()
+        Result resultOfOriginal() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static final class Generation {
+        private final Map<IdempotencyKey, Execution> executions = new ConcurrentHashMap<>();
+        private final long startedAt;
+
+        Generation(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package io.pillopl.consistency;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Keeps events in a relational table, encoded with EventCodec. The unique
+// (stream_id, version) constraint rejects appends racing from other
+// processes, which EventStore's in-process locks can't see. Those fail with
+// StreamVersionConflict and EventStore returns Failure.
+//
+// Positions in the global log are given out by EventStore, so only one
+// process should append to a table. The primary key on position turns a
+// second one into conflicts instead of a corrupted log. Appends take a round
+// trip each, so they run concurrently outside EventStore's commit lock.
+//
+// Reads return lists bounded by their maxCount, the fetch size only bounds
+// how many rows the driver holds per round trip. Reading the whole log or a
+// long stream has to page through it, as EventPublisher and rebuilds do.
+class JdbcEventStorage implements EventStorage {
+    private static final String uniqueViolation = "23505";
+
+    private final ConnectionPool connections;
+    private final int fetchSize;
+    private final EventUpcasters upcasters;
+    private final AtomicLong nextPosition = new AtomicLong(-1);
+
+    JdbcEventStorage(ConnectionPool connections) {
+        this(connections, 256);
+    }
+
+    JdbcEventStorage(ConnectionPool connections, int fetchSize) {
+        this(connections, fetchSize, EventUpcasters.none);
+    }
+
+    // Tables holding events of older schemas need the upcasters to read them
+    JdbcEventStorage(ConnectionPool connections, int fetchSize, EventUpcasters upcasters) {
+        this.connections = connections;
+        this.fetchSize = fetchSize;
+        this.upcasters = upcasters;
+        createTable();
+    }
+
+    @Override
+    public int version(String streamId) {
+        return query(
+            "SELECT COALESCE(MAX(version), 0) FROM events WHERE stream_id = ?",
+            statement -> {
+                statement.setString(1, streamId);
+                try (var result = statement.executeQuery()) {
+                    result.next();
+                    return result.getInt(1);
+                }
+            }
+        );
+    }
+
+    @Override
+    public EventStream read(String streamId) {
+        return new EventStream(streamId, read(streamId, 1, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<EventEnvelope> read(String streamId, int fromVersion, int maxCount) {
+        return query(
+            "SELECT payload FROM events WHERE stream_id = ? AND version >= ? ORDER BY version LIMIT ?",
+            statement -> {
+                statement.setString(1, streamId);
+                statement.setInt(2, fromVersion);
+                statement.setInt(3, maxCount);
+                return events(statement, maxCount);
+            }
+        );
+    }
+
+    @Override
+    public List<EventEnvelope> readBackward(String streamId, int fromVersion, int maxCount) {
+        return query(
+            "SELECT payload FROM events WHERE stream_id = ? AND version <= ? ORDER BY version DESC LIMIT ?",
+            statement -> {
+                statement.setString(1, streamId);
+                statement.setInt(2, fromVersion);
+                statement.setInt(3, maxCount);
+                return events(statement, maxCount);
+            }
+        );
+    }
+
+    @Override
+    public void append(String streamId, List<EventEnvelope> events) {
+        appendAll(Map.of(streamId, events));
+    }
+
+    // All events of an append, whichever streams they go to,
+    // are inserted in one batch and one transaction.
+    @Override
+    public void appendAll(Map<String, List<EventEnvelope>> events) {
+        var connection = connections.acquire();
+        var committed = false;
+        try (var insert = connection.prepareStatement(
+            "INSERT INTO events (position, stream_id, version, event_type, payload) VALUES (?, ?, ?, ?, ?)"
+        )) {
+            try {
+                connection.setAutoCommit(false);
+                var lastPosition = -1L;
+                for (var event : events.values().stream().flatMap(List::stream).toList()) {
+                    var metadata = event.metadata();
+                    insert.setLong(1, metadata.position());
+                    insert.setString(2, metadata.streamId());
+                    insert.setInt(3, metadata.version());
+                    insert.setInt(4, metadata.eventType());
+                    insert.setBytes(5, EventCodec.encode(event));
+                    insert.addBatch();
+                    lastPosition = Math.max(lastPosition, metadata.position());
+                }
+                insert.executeBatch();
+                connection.commit();
+                committed = true;
+                if (lastPosition >= 0) {
+                    nextPosition.accumulateAndGet(lastPosition + 1, Math::max);
+                }
+            } finally {
+                // whatever failed, SQL or encoding, the connection goes back clean
+                if (!committed) {
+                    clearBatch(insert);
+                    rollback(connection);
+                    nextPosition.set(-1);
+                }
+            }
+        } catch (SQLException e) {
+            var streamId = events.keySet().iterator().next();
+            if (isUniqueViolation(e)) {
+                throw new StreamVersionConflict(streamId, e);
+            }
+            throw new IllegalStateException("Appending to " + streamId + " failed", e);
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    @Override
+    public boolean appendsConcurrently() {
+        return true;
+    }
+
+    @Override
+    public long nextPosition() {
+        var position = nextPosition.get();
+        if (position >= 0) {
+            return position;
+        }
+        position = query("SELECT COALESCE(MAX(position) + 1, 0) FROM events", statement -> {
+            try (var result = statement.executeQuery()) {
+                result.next();
+                return result.getLong(1);
+            }
+        });
+        nextPosition.set(position);
+        return position;
+    }
+
+    // Streams written by earlier processes, so EventStore can find
+    // categories after reopening the table
+    @Override
+    public Stream<String> streamIds() {
+        return query("SELECT DISTINCT stream_id FROM events", statement -> {
+            statement.setFetchSize(fetchSize);
+            var streamIds = new ArrayList<String>();
+            try (var result = statement.executeQuery()) {
+                while (result.next()) {
+                    streamIds.add(result.getString(1));
+                }
+            }
+            return streamIds.stream();
+        });
+    }
+
+    @Override
+    public List<EventEnvelope> readAll(long fromPosition, int maxCount) {
+        return query(
+            "SELECT payload FROM events WHERE position >= ? ORDER BY position LIMIT ?",
+            statement -> {
+                statement.setLong(1, fromPosition);
+                statement.setInt(2, maxCount);
+                return events(statement, maxCount);
+            }
+        );
+    }
+
+    // Rows are rewritten in place, decoding upcasts them and encoding writes
+    // the current schema. Events never change otherwise, so there's nothing
+    // to race with but other rewriters doing the same.
+    @Override
+    public int rewriteOutdated(long fromPosition, int count) {
+        var outdated = query(
+            "SELECT position, payload FROM events WHERE position >= ? AND position < ?",
+            statement -> {
+                statement.setLong(1, fromPosition);
+                statement.setLong(2, fromPosition + count);
+                statement.setFetchSize(Math.min(fetchSize, count));
+                var rows = new LinkedHashMap<Long, byte[]>();
+                try (var result = statement.executeQuery()) {
+                    while (result.next()) {
+                        var payload = ByteBuffer.wrap(result.getBytes(2));
+                        if (!EventCodec.isCurrent(payload)) {
+                            rows.put(result.getLong(1), EventCodec.encode(EventCodec.decode(payload, upcasters)));
+                        }
+                    }
+                }
+                return rows;
+            }
+        );
+        if (outdated.isEmpty()) {
+            return 0;
+        }
+        var connection = connections.acquire();
+        try (var update = connection.prepareStatement("UPDATE events SET payload = ? WHERE position = ?")) {
+            connection.setAutoCommit(false);
+            for (var row : outdated.entrySet()) {
+                update.setBytes(1, row.getValue());
+                update.setLong(2, row.getKey());
+                update.addBatch();
+            }
+            update.executeBatch();
+            connection.commit();
+            return outdated.size();
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new IllegalStateException("Rewriting events from " + fromPosition + " failed", e);
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    private List<EventEnvelope> events(PreparedStatement statement, int maxCount) throws SQLException {
+        statement.setFetchSize(Math.min(fetchSize, maxCount));
+        var events = new ArrayList<EventEnvelope>();
+        try (var result = statement.executeQuery()) {
+            while (result.next()) {
+                events.add(EventCodec.decode(ByteBuffer.wrap(result.getBytes(1)), upcasters));
+            }
+        }
+        return events;
+    }
+
+    private void createTable() {
+        query("""
+            CREATE TABLE IF NOT EXISTS events (
+                position BIGINT PRIMARY KEY,
+                stream_id VARCHAR(255) NOT NULL,
+                version INT NOT NULL,
+                event_type INT NOT NULL,
+                payload VARBINARY NOT NULL,
+                CONSTRAINT events_stream_version UNIQUE (stream_id, version)
+            )""",
+            PreparedStatement::execute
+        );
+    }
+
+    private <R> R query(String sql, Query<R> query) {
+        var connection = connections.acquire();
+        try (var statement = connection.prepareStatement(sql)) {
+            if (!connection.getAutoCommit()) {
+                connection.setAutoCommit(true);
+            }
+            return query.run(statement);
+        } catch (SQLException e) {
+            throw new IllegalStateException(sql + " failed", e);
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException sql
+                && (uniqueViolation.equals(sql.getSQLState())
+                || sql.getNextException() != null && uniqueViolation.equals(sql.getNextException().getSQLState()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void clearBatch(PreparedStatement statement) {
+        try {
+            statement.clearBatch();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private interface Query<R> {
+        R run(PreparedStatement statement) throws SQLException;
+    }
+}
+
+// Fixed-size pool without synchronized blocks, so virtual threads waiting
+// for a connection unmount instead of pinning their carrier.
+class ConnectionPool implements AutoCloseable {
+    private final String url;
+    private final Semaphore available;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    ConnectionPool(String url, int size) {
+        this.url = url;
+        this.available = new Semaphore(size);
+    }
+
+    Connection acquire() {
+        available.acquireUninterruptibly();
+        var connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        try {
+            return DriverManager.getConnection(url);
+        } catch (SQLException e) {
+            available.release();
+            throw new IllegalStateException("Can't connect to " + url, e);
+        }
+    }
+
+    void release(Connection connection) {
+        idle.add(connection);
+        available.release();
+    }
+
+    @Override
+    public void close() {
+        for (var connection = idle.poll(); connection != null; connection = idle.poll()) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package io.pillopl.consistency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Shipped log is a directory of segment files named after the position of
+// their first event. Each entry is [length][crc32c][EventCodec bytes], a
+// reader stops at an entry that isn't completely written yet.
+final class LogSegments {
+    private static final String prefix = "events-";
+    private static final String suffix = ".log";
+    static final int headerBytes = 8;
+
+    private LogSegments() {
+    }
+
+    static Path file(Path directory, long firstPosition) {
+        return directory.resolve(prefix + "%020d".formatted(firstPosition) + suffix);
+    }
+
+    static List<Long> list(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files
+                .map(file -> file.getFileName().toString())
+                .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                .map(name -> Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())))
+                .sorted()
+                .toList();
+        }
+    }
+
+    static int checksum(ByteBuffer entry) {
+        var crc = new CRC32C();
+        crc.update(entry.duplicate());
+        return (int) crc.getValue();
+    }
+}
+
+// Primary side of a hot standby. Follows the store's global log and appends
+// every event to segment files that a StandbyReplica on the same box tails.
+// Writes are not fsynced one by one: the primary's storage is the durable
+// copy, segments only have to be visible to the reader, which the page cache
+// gives right away. A segment is forced to disk when it's rolled over.
+// Shipping stops at the first write that fails, failure() tells why, and
+// start() picks up after the last complete entry again.
+class LogShipper implements Flow.Subscriber<EventEnvelope> {
+    private static final int batchSize = 256;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Counter shippedEvents;
+    private final Counter failures;
+    private Flow.Subscription subscription;
+    private FileChannel segment;
+    private int deliveredInBatch;
+    private boolean stopped;
+    private volatile long shippedPosition = -1;
+    private volatile Throwable failure;
+
+    LogShipper(Path directory) {
+        this(directory, 64 * 1024 * 1024, Metrics.disabled());
+    }
+
+    LogShipper(Path directory, long segmentBytes, Metrics metrics) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.shippedEvents = metrics.counter("logShipper.events");
+        this.failures = metrics.counter("logShipper.failures");
+    }
+
+    // Ships everything the store has, then keeps up with new appends.
+    // Shipping always starts a new segment, from a restart it picks up after
+    // the last complete entry already shipped.
+    void start(EventStore primary) {
+        try {
+            Files.createDirectories(directory);
+            shippedPosition = lastShippedPosition();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            stopped = false;
+            failure = null;
+            deliveredInBatch = 0;
+        }
+        primary.publisher(EventFilter.all(), shippedPosition + 1).subscribe(this);
+    }
+
+    void stop() {
+        var current = subscription;
+        if (current != null) {
+            current.cancel();
+        }
+        synchronized (this) {
+            stopped = true;
+            closeSegment();
+        }
+    }
+
+    long shippedPosition() {
+        return shippedPosition;
+    }
+
+    // Why shipping stopped, empty while it runs or after a clean stop
+    Optional<Throwable> failure() {
+        return Optional.ofNullable(failure);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public synchronized void onNext(EventEnvelope event) {
+        if (stopped) {
+            return;
+        }
+        try {
+            write(event);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        shippedPosition = event.metadata().position();
+        shippedEvents.increment();
+        if (++deliveredInBatch == batchSize) {
+            deliveredInBatch = 0;
+            subscription.request(batchSize);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        stop();
+    }
+
+    private void fail(Throwable cause) {
+        failure = cause;
+        failures.increment();
+        stop();
+    }
+
+    private void write(EventEnvelope event) throws IOException {
+        if (segment == null || segment.size() >= segmentBytes) {
+            closeSegment();
+            segment = openSegment(event.metadata().position());
+        }
+        var encoded = EventCodec.encode(event);
+        var entry = ByteBuffer.allocate(LogSegments.headerBytes + encoded.length)
+            .putInt(encoded.length)
+            .putInt(LogSegments.checksum(ByteBuffer.wrap(encoded)))
+            .put(encoded)
+            .flip();
+        while (entry.hasRemaining()) {
+            segment.write(entry);
+        }
+    }
+
+    // Only an empty segment is taken over, one left by a crash before its
+    // first entry was complete was truncated by start()
+    private FileChannel openSegment(long firstPosition) throws IOException {
+        var channel = FileChannel.open(
+            LogSegments.file(directory, firstPosition),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE
+        );
+        if (channel.size() > 0) {
+            channel.close();
+            throw new FileAlreadyExistsException(LogSegments.file(directory, firstPosition).toString());
+        }
+        return channel;
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.force(false);
+            segment.close();
+        } catch (IOException ignored) {
+        }
+        segment = null;
+    }
+
+    // Newest segments without a single complete entry are truncated, the
+    // next one shipped starts at their first position and takes them over.
+    // Truncated rather than deleted, as a standby may have them open.
+    private long lastShippedPosition() throws IOException {
+        for (var firstPosition : LogSegments.list(directory).reversed()) {
+            var last = -1L;
+            try (var reader = new SegmentReader(LogSegments.file(directory, firstPosition))) {
+                for (var event = reader.next(); event != null; event = reader.next()) {
+                    last = event.metadata().position();
+                }
+            }
+            if (last >= 0) {
+                return last;
+            }
+            try (var torn = FileChannel.open(LogSegments.file(directory, firstPosition), StandardOpenOption.WRITE)) {
+                torn.truncate(0);
+            }
+        }
+        return -1;
+    }
+}
+
+// Follower side of a hot standby. Tails the shipped segments and replicates
+// their events into the standby store, so its streams, category index and
+// subscribed projections are already warm when it has to take over.
+// Nothing else should append to the standby store until it's promoted.
+//
+// A poll that fails is counted and remembered in failure(), the next one
+// reads again from the event after the last applied. Lag is the time since
+// the standby last applied everything shipped, so it keeps growing while
+// polls fail or stop.
+class StandbyReplica {
+    private static final int batchSize = 1024;
+
+    private final Path directory;
+    private final EventStore standby;
+    private final Histogram lagMillis;
+    private final Histogram appliedEvents;
+    private final Counter failures;
+    private SegmentReader reader;
+    private long segmentStart = -1;
+    private volatile long appliedPosition = -1;
+    private volatile long caughtUpAtMillis = System.currentTimeMillis();
+    private volatile Exception failure;
+    private volatile boolean promoted;
+    private ScheduledExecutorService timer;
+
+    StandbyReplica(Path directory, EventStore standby) {
+        this(directory, standby, Metrics.disabled());
+    }
+
+    StandbyReplica(Path directory, EventStore standby, Metrics metrics) {
+        this.directory = directory;
+        this.standby = standby;
+        this.lagMillis = metrics.histogram("standby.lagMillis");
+        this.appliedEvents = metrics.histogram("standby.appliedEvents");
+        this.failures = metrics.counter("standby.failures");
+    }
+
+    void start(Duration period) {
+        timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory());
+        timer.scheduleWithFixedDelay(this::poll, 0, period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Applies everything shipped so far, returns how many events it applied.
+    // A promoted standby doesn't follow the log anymore.
+    synchronized int poll() {
+        if (promoted) {
+            return 0;
+        }
+        var applied = 0;
+        try {
+            while (true) {
+                var batch = nextBatch();
+                if (batch.isEmpty()) {
+                    caughtUpAtMillis = System.currentTimeMillis();
+                    failure = null;
+                    return applied;
+                }
+                standby.replicate(batch);
+                var last = batch.getLast().metadata();
+                appliedPosition = last.position();
+                lagMillis.record(System.currentTimeMillis() - last.occurredAt().toEpochMilli());
+                appliedEvents.record(batch.size());
+                applied += batch.size();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            failures.increment();
+            // whatever was read past the last applied event is read again
+            closeReader();
+            segmentStart = -1;
+            return applied;
+        }
+    }
+
+    // Catches up with whatever was shipped and hands over the store,
+    // which from now on takes appends as the new primary. Fails if the
+    // standby can't catch up, it's left following the log then.
+    synchronized EventStore promote() {
+        if (timer != null) {
+            timer.shutdown();
+        }
+        poll();
+        var failed = failure;
+        if (failed != null) {
+            throw new IllegalStateException("Standby can't catch up after " + appliedPosition, failed);
+        }
+        promoted = true;
+        closeReader();
+        return standby;
+    }
+
+    long appliedPosition() {
+        return appliedPosition;
+    }
+
+    // Why the last poll failed, empty once one went through
+    Optional<Exception> failure() {
+        return Optional.ofNullable(failure);
+    }
+
+    // Time since the standby last applied everything shipped
+    Duration lag() {
+        return Duration.ofMillis(System.currentTimeMillis() - caughtUpAtMillis);
+    }
+
+    private List<EventEnvelope> nextBatch() throws IOException {
+        var batch = new ArrayList<EventEnvelope>();
+        while (batch.size() < batchSize) {
+            if (reader == null && !openNextSegment()) {
+                break;
+            }
+            var event = reader.next();
+            if (event == null) {
+                // the segment is done only once the shipper moved to a newer one,
+                // anything still missing then is a torn tail and gets skipped
+                if (!hasSegmentAfter(segmentStart)) {
+                    break;
+                }
+                closeReader();
+                continue;
+            }
+            if (event.metadata().position() > appliedPosition) {
+                batch.add(event);
+            }
+        }
+        return batch;
+    }
+
+    private boolean openNextSegment() throws IOException {
+        // the newest segment that still holds the next position to apply
+        var next = -1L;
+        for (var firstPosition : LogSegments.list(directory)) {
+            if (firstPosition > segmentStart && (next < 0 || firstPosition <= appliedPosition + 1)) {
+                next = firstPosition;
+            }
+        }
+        if (next < 0) {
+            return false;
+        }
+        segmentStart = next;
+        reader = new SegmentReader(LogSegments.file(directory, next));
+        return true;
+    }
+
+    private boolean hasSegmentAfter(long firstPosition) throws IOException {
+        return LogSegments.list(directory).getLast() > firstPosition;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+}
+
+// Reads entries of one segment while it may still be written to,
+// next() returns null at the end of what is completely written.
+class SegmentReader implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(LogSegments.headerBytes);
+    private long offset;
+
+    SegmentReader(Path segment) throws IOException {
+        this.channel = FileChannel.open(segment, StandardOpenOption.READ);
+    }
+
+    EventEnvelope next() throws IOException {
+        if (channel.size() - offset < LogSegments.headerBytes) {
+            return null;
+        }
+        channel.read(header.clear(), offset);
+        var length = header.getInt(0);
+        var checksum = header.getInt(4);
+        if (length <= 0 || channel.size() - offset - LogSegments.headerBytes < length) {
+            return null;
+        }
+        var entry = ByteBuffer.allocate(length);
+        while (entry.hasRemaining()) {
+            channel.read(entry, offset + LogSegments.headerBytes + entry.position());
+        }
+        entry.flip();
+        if (LogSegments.checksum(entry) != checksum) {
+            return null;
+        }
+        offset += LogSegments.headerBytes + length;
+        return EventCodec.decode(entry);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
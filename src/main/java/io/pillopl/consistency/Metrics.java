@@ -0,0 +1,338 @@
+package io.pillopl.consistency;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Recorders are looked up once, when the instrumented component is created,
+// so recording on the hot path doesn't allocate.
+interface Metrics {
+    boolean isEnabled();
+
+    Counter counter(String name);
+
+    Histogram histogram(String name);
+
+    HotKeys hotKeys(String name);
+
+    static Metrics disabled() {
+        return DisabledMetrics.instance;
+    }
+}
+
+interface Counter {
+    void increment();
+
+    long count();
+}
+
+interface Histogram {
+    void record(long value);
+
+    long count();
+
+    long max();
+
+    long valueAtPercentile(double percentile);
+}
+
+interface HotKeys {
+    void attempted(String key);
+
+    void conflicted(String key);
+
+    void retried(String key);
+
+    List<HotKey> top(int n);
+}
+
+record HotKey(String key, long conflicts, long attempts, long retries) {
+    double conflictRate() {
+        return attempts == 0 ? 0 : Math.min(1.0, (double) conflicts / attempts);
+    }
+}
+
+record Outcomes(Counter success, Counter failure) {
+    static Outcomes of(Metrics metrics, String name) {
+        return new Outcomes(
+            metrics.counter(name + ".success"),
+            metrics.counter(name + ".failure")
+        );
+    }
+
+    Result record(Result result) {
+        (result == Result.Success ? success : failure).increment();
+        return result;
+    }
+}
+
+class MetricsRegistry implements Metrics {
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, HotKeys> hotKeys = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new AdderCounter());
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LogLinearHistogram());
+    }
+
+    @Override
+    public HotKeys hotKeys(String name) {
+        return hotKeys.computeIfAbsent(name, n -> new ContentionSketch());
+    }
+
+    Map<String, Counter> counters() {
+        return Map.copyOf(counters);
+    }
+
+    Map<String, Histogram> histograms() {
+        return Map.copyOf(histograms);
+    }
+}
+
+class AdderCounter implements Counter {
+    private final LongAdder count = new LongAdder();
+
+    @Override
+    public void increment() {
+        count.increment();
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+}
+
+// HdrHistogram-like: exact below 128, above that 64 buckets per power of two,
+// which keeps the relative error under 2%.
+class LogLinearHistogram implements Histogram {
+    private static final int linearBuckets = 128;
+    private static final int subBuckets = 64;
+    private static final int bucketCount = linearBuckets + (63 - 7) * subBuckets;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    @Override
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+
+        var currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public long valueAtPercentile(double percentile) {
+        var total = 0L;
+        for (int i = 0; i < bucketCount; i++) {
+            total += buckets.get(i);
+        }
+        var threshold = (long) Math.ceil(total * percentile / 100.0);
+        var seen = 0L;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold && seen > 0) {
+                return Math.min(highestValueIn(i), max());
+            }
+        }
+        return 0;
+    }
+
+    static int indexOf(long value) {
+        if (value < linearBuckets) {
+            return (int) value;
+        }
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var mantissa = (int) (value >>> (exponent - 6)) - subBuckets;
+        return linearBuckets + (exponent - 7) * subBuckets + mantissa;
+    }
+
+    static long highestValueIn(int index) {
+        if (index < linearBuckets) {
+            return index;
+        }
+        var exponent = (index - linearBuckets) / subBuckets + 7;
+        var mantissa = (index - linearBuckets) % subBuckets + subBuckets;
+        var shift = exponent - 6;
+        return ((long) (mantissa + 1) << shift) - 1;
+    }
+}
+
+// Attempts and retries go to count-min sketches, so every key is counted
+// in fixed memory. Conflicts are counted only for the most contended keys
+// (space-saving top-K), which is cheap as conflicts are the slow path.
+class ContentionSketch implements HotKeys {
+    private static final int depth = 4;
+    private static final int width = 4096;
+    private static final int capacity = 64;
+    private static final int[] seeds = {0x9E3779B9, 0x7F4A7C15, 0x2545F491, 0x61C88647};
+
+    private final AtomicLongArray attempts = new AtomicLongArray(depth * width);
+    private final AtomicLongArray retries = new AtomicLongArray(depth * width);
+    private final Map<String, long[]> conflicts = new HashMap<>();
+
+    @Override
+    public void attempted(String key) {
+        add(attempts, key);
+    }
+
+    @Override
+    public synchronized void conflicted(String key) {
+        var counts = conflicts.get(key);
+        if (counts != null) {
+            counts[0]++;
+            return;
+        }
+        if (conflicts.size() < capacity) {
+            conflicts.put(key, new long[]{1});
+            return;
+        }
+        var leastContended = conflicts.entrySet().stream()
+            .min(Comparator.comparingLong(e -> e.getValue()[0]))
+            .orElseThrow();
+        conflicts.remove(leastContended.getKey());
+        conflicts.put(key, new long[]{leastContended.getValue()[0] + 1});
+    }
+
+    @Override
+    public void retried(String key) {
+        add(retries, key);
+    }
+
+    @Override
+    public synchronized List<HotKey> top(int n) {
+        var result = new ArrayList<HotKey>();
+        conflicts.forEach((key, counts) -> result.add(
+            new HotKey(key, counts[0], estimate(attempts, key), estimate(retries, key))
+        ));
+        result.sort(Comparator.comparingLong(HotKey::conflicts).reversed());
+        return result.subList(0, Math.min(n, result.size()));
+    }
+
+    private static void add(AtomicLongArray sketch, String key) {
+        for (int row = 0; row < depth; row++) {
+            sketch.incrementAndGet(row * width + column(key, row));
+        }
+    }
+
+    private static long estimate(AtomicLongArray sketch, String key) {
+        var result = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            result = Math.min(result, sketch.get(row * width + column(key, row)));
+        }
+        return result;
+    }
+
+    // Every row hashes the key itself with its own seed (murmur3 over the
+    // chars), keys with the same String.hashCode still part in some row
+    private static int column(String key, int row) {
+        var hash = seeds[row];
+        for (int i = 0; i < key.length(); i++) {
+            var k = Integer.rotateLeft(key.charAt(i) * 0xCC9E2D51, 15) * 0x1B873593;
+            hash = Integer.rotateLeft(hash ^ k, 13) * 5 + 0xE6546B64;
+        }
+        hash ^= key.length();
+        hash = (hash ^ (hash >>> 16)) * 0x85EBCA6B;
+        hash = (hash ^ (hash >>> 13)) * 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash & (width - 1);
+    }
+}
+
+class DisabledMetrics implements Metrics, Counter, Histogram, HotKeys {
+    static final DisabledMetrics instance = new DisabledMetrics();
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return this;
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return this;
+    }
+
+    @Override
+    public HotKeys hotKeys(String name) {
+        return this;
+    }
+
+    @Override
+    public void increment() {
+    }
+
+    @Override
+    public void attempted(String key) {
+    }
+
+    @Override
+    public void conflicted(String key) {
+    }
+
+    @Override
+    public void retried(String key) {
+    }
+
+    @Override
+    public List<HotKey> top(int n) {
+        return List.of();
+    }
+
+    @Override
+    public void record(long value) {
+    }
+
+    @Override
+    public long count() {
+        return 0;
+    }
+
+    @Override
+    public long max() {
+        return 0;
+    }
+
+    @Override
+    public long valueAtPercentile(double percentile) {
+        return 0;
+    }
+}
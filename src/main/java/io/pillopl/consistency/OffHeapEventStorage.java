@@ -0,0 +1,173 @@
+package io.pillopl.consistency;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Keeps encoded events in direct (off-heap) segments, only a position per
+// event stays on the heap. Events are decoded when a stream is read. The
+// global log also keeps every event's position in it, so looking a position
+// up never decodes events.
+class OffHeapEventStorage implements EventStorage {
+    static final int defaultSegmentSize = 16 * 1024 * 1024;
+
+    private final int segmentSize;
+    private final List<ByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final Map<String, StreamIndex> streams = new ConcurrentHashMap<>();
+    private final StreamIndex all = new StreamIndex();
+    private final StreamIndex logPositions = new StreamIndex();
+    private ByteBuffer current;
+
+    OffHeapEventStorage() {
+        this(defaultSegmentSize);
+    }
+
+    OffHeapEventStorage(int segmentSize) {
+        this.segmentSize = segmentSize;
+        newSegment();
+    }
+
+    @Override
+    public int version(String streamId) {
+        var index = streams.get(streamId);
+        return index != null ? index.size : 0;
+    }
+
+    @Override
+    public EventStream read(String streamId) {
+        return new EventStream(streamId, read(streamId, 1, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<EventEnvelope> read(String streamId, int fromVersion, int maxCount) {
+        var index = streams.get(streamId);
+        if (index == null) {
+            return List.of();
+        }
+        var size = index.size;
+        var positions = index.positions;
+        var from = Math.max(0, fromVersion - 1);
+        var to = (int) Math.min(size, (long) from + maxCount);
+        var events = new ArrayList<EventEnvelope>(Math.max(0, to - from));
+
+        for (int i = from; i < to; i++) {
+            events.add(decodeAt(positions[i]));
+        }
+        return events;
+    }
+
+    @Override
+    public List<EventEnvelope> readBackward(String streamId, int fromVersion, int maxCount) {
+        var index = streams.get(streamId);
+        if (index == null) {
+            return List.of();
+        }
+        var size = index.size;
+        var positions = index.positions;
+        var start = Math.min(size, fromVersion) - 1;
+        var to = (int) Math.max(-1, (long) start - maxCount);
+        var events = new ArrayList<EventEnvelope>(Math.max(0, start - to));
+
+        for (int i = start; i > to; i--) {
+            events.add(decodeAt(positions[i]));
+        }
+        return events;
+    }
+
+    @Override
+    public void append(String streamId, List<EventEnvelope> events) {
+        appendAll(Map.of(streamId, events));
+    }
+
+    @Override
+    public void appendAll(Map<String, List<EventEnvelope>> events) {
+        // encoded up front, so an event that can't be stored fails the whole
+        // batch before any of it is visible to readers
+        var ordered = EventStorage.inPositionOrder(events);
+        var encoded = new byte[ordered.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = EventCodec.encode(ordered.get(i));
+            if (encoded[i].length > segmentSize) {
+                throw new IllegalArgumentException(
+                    "Event of " + encoded[i].length + " bytes doesn't fit a " + segmentSize + " bytes segment"
+                );
+            }
+        }
+        var offsets = write(encoded);
+        for (int i = 0; i < offsets.length; i++) {
+            var event = ordered.get(i);
+            streams.computeIfAbsent(event.metadata().streamId(), id -> new StreamIndex()).add(offsets[i]);
+            // ahead of all, so readers never see an event without its log position
+            logPositions.add(event.metadata().position());
+            all.add(offsets[i]);
+        }
+    }
+
+    @Override
+    public long nextPosition() {
+        var size = all.size;
+        return size > 0 ? logPositions.positions[size - 1] + 1 : 0;
+    }
+
+    @Override
+    public List<EventEnvelope> readAll(long fromPosition, int maxCount) {
+        var size = all.size;
+        var positions = all.positions;
+        var inLog = logPositions.positions;
+        var from = EventStorage.indexOf(fromPosition, size, i -> inLog[i]);
+        var to = (int) Math.min(size, (long) from + maxCount);
+        var events = new ArrayList<EventEnvelope>(Math.max(0, to - from));
+
+        for (int i = from; i < to; i++) {
+            events.add(decodeAt(positions[i]));
+        }
+        return events;
+    }
+
+    long offHeapBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    private synchronized long[] write(byte[][] encoded) {
+        var offsets = new long[encoded.length];
+        for (int i = 0; i < encoded.length; i++) {
+            if (current.remaining() < encoded[i].length) {
+                newSegment();
+            }
+            offsets[i] = ((long) (segments.size() - 1) << 32) | current.position();
+            current.put(encoded[i]);
+        }
+        return offsets;
+    }
+
+    private EventEnvelope decodeAt(long position) {
+        var segment = segments.get((int) (position >>> 32)).duplicate();
+        return EventCodec.decode(segment.position((int) position));
+    }
+
+    private void newSegment() {
+        current = ByteBuffer.allocateDirect(segmentSize);
+        segments.add(current);
+    }
+
+    // Single writer (stream appends are serialized by EventStore),
+    // readers see a consistent prefix as size is published last.
+    private static final class StreamIndex {
+        private volatile long[] positions = new long[4];
+        private volatile int size;
+
+        void add(long position) {
+            var current = positions;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+                positions = current;
+            }
+            current[size] = position;
+            size = size + 1;
+        }
+    }
+}
@@ -1,35 +1,156 @@
 package io.pillopl.consistency;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
-record Ownership(Set<OwnerId> owners, int version) implements Versioned {
+sealed interface OwnershipEvent {
+    CardId cardId();
+
+    record AccessGranted(
+        CardId cardId,
+        OwnerId ownerId,
+        Instant grantedAt
+    ) implements OwnershipEvent {
+    }
+
+    record AccessRevoked(
+        CardId cardId,
+        OwnerId ownerId,
+        Instant revokedAt
+    ) implements OwnershipEvent {
+    }
+}
+
+// A card has at most two owners, kept inline as the bits of their ids,
+// so checking access neither allocates nor hashes.
+record Ownership(
+    long firstHigh,
+    long firstLow,
+    long secondHigh,
+    long secondLow,
+    int size,
+    int version
+) implements Versioned {
+    static final int maxOwners = 2;
 
     static Ownership of(OwnerId... owners) {
-        return new Ownership(Set.of(owners), 0);
+        var ownership = empty();
+        for (var owner : owners) {
+            ownership = ownership.addAccess(owner);
+        }
+        return new Ownership(
+            ownership.firstHigh, ownership.firstLow,
+            ownership.secondHigh, ownership.secondLow,
+            ownership.size, 0
+        );
     }
 
     public static Ownership empty() {
-        return new Ownership(Set.of(), 0);
+        return new Ownership(0, 0, 0, 0, 0, 0);
+    }
+
+    static Ownership recreate(List<OwnershipEvent> events) {
+        var ownership = empty();
+        for (var event : events) {
+            ownership = ownership.apply(event);
+        }
+        return ownership;
+    }
+
+    Ownership apply(OwnershipEvent event) {
+        return switch (event) {
+            case OwnershipEvent.AccessGranted e -> addAccess(e.ownerId());
+            case OwnershipEvent.AccessRevoked e -> revoke(e.ownerId());
+        };
     }
 
     boolean hasAccess(OwnerId ownerId) {
-        return owners.contains(ownerId);
+        var id = ownerId.id();
+        return indexOf(id.getMostSignificantBits(), id.getLeastSignificantBits()) >= 0;
     }
 
     Ownership addAccess(OwnerId ownerId) {
-        Set<OwnerId> newOwners = new HashSet<>(owners);
-        newOwners.add(ownerId);
-        return new Ownership(newOwners, version + 1);
+        var high = ownerId.id().getMostSignificantBits();
+        var low = ownerId.id().getLeastSignificantBits();
+
+        if (indexOf(high, low) >= 0) {
+            return new Ownership(firstHigh, firstLow, secondHigh, secondLow, size, version + 1);
+        }
+        return switch (size) {
+            case 0 -> new Ownership(high, low, 0, 0, 1, version + 1);
+            case 1 -> new Ownership(firstHigh, firstLow, high, low, 2, version + 1);
+            default -> throw new IllegalStateException("Card can have at most " + maxOwners + " owners");
+        };
     }
 
     Ownership revoke(OwnerId ownerId) {
-        Set<OwnerId> newOwners = new HashSet<>(owners);
-        newOwners.remove(ownerId);
-        return new Ownership(newOwners, version + 1);
+        var id = ownerId.id();
+        return switch (indexOf(id.getMostSignificantBits(), id.getLeastSignificantBits())) {
+            case 0 -> new Ownership(secondHigh, secondLow, 0, 0, size - 1, version + 1);
+            case 1 -> new Ownership(firstHigh, firstLow, 0, 0, size - 1, version + 1);
+            default -> new Ownership(firstHigh, firstLow, secondHigh, secondLow, size, version + 1);
+        };
+    }
+
+    private int indexOf(long high, long low) {
+        if (size > 0 && firstHigh == high && firstLow == low) {
+            return 0;
+        }
+        if (size > 1 && secondHigh == high && secondLow == low) {
+            return 1;
+        }
+        return -1;
+    }
+}
+
+// Direct-mapped cache in front of OwnershipDatabase for the withdrawal path.
+// Reads never lock: a slot either holds this card's latest ownership or
+// something else, in which case the caller goes to the database.
+class OwnershipNearCache {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    OwnershipNearCache(int capacity) {
+        var size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    // Called by the database under the lock of this card's entry
+    void put(CardId cardId, Ownership ownership) {
+        var id = cardId.contractId();
+        slots.set(slotOf(id), Entry.of(id, ownership));
+    }
+
+    // Filling after a miss must not overwrite a newer save made meanwhile,
+    // so it only succeeds if the slot did not change since it was read.
+    Ownership load(CardId cardId, Function<CardId, Ownership> database) {
+        var id = cardId.contractId();
+        var slot = slotOf(id);
+        var seen = slots.get(slot);
+        if (seen != null && seen.is(id)) {
+            return seen.ownership();
+        }
+        var ownership = database.apply(cardId);
+        slots.compareAndSet(slot, seen, Entry.of(id, ownership));
+        return ownership;
     }
 
-    int size() {
-        return owners.size();
+    private int slotOf(UUID id) {
+        var hash = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private record Entry(long high, long low, Ownership ownership) {
+        static Entry of(UUID id, Ownership ownership) {
+            return new Entry(id.getMostSignificantBits(), id.getLeastSignificantBits(), ownership);
+        }
+
+        boolean is(UUID id) {
+            return high == id.getMostSignificantBits() && low == id.getLeastSignificantBits();
+        }
     }
 }
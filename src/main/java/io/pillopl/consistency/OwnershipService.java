@@ -1,31 +1,45 @@
 package io.pillopl.consistency;
 
+import java.time.Instant;
+
 class OwnershipService {
 
     private final OwnershipDatabase ownershipDatabase;
+    private final Outcomes addAccessOutcomes;
+    private final Outcomes revokeAccessOutcomes;
 
     OwnershipService(OwnershipDatabase ownershipDatabase) {
+        this(ownershipDatabase, Metrics.disabled());
+    }
+
+    OwnershipService(OwnershipDatabase ownershipDatabase, Metrics metrics) {
         this.ownershipDatabase = ownershipDatabase;
+        this.addAccessOutcomes = Outcomes.of(metrics, "ownershipService.addAccess");
+        this.revokeAccessOutcomes = Outcomes.of(metrics, "ownershipService.revokeAccess");
     }
 
     Result addAccess(CardId cardId, OwnerId ownerId) {
         Ownership ownership = ownershipDatabase.find(cardId);
         var expectedVersion = ownership.version();
 
-        if (ownership.size() >= 2) {
-            return Result.Failure;
+        if (ownership.size() >= Ownership.maxOwners) {
+            return addAccessOutcomes.record(Result.Failure);
         }
-        ownership = ownership.addAccess(ownerId);
+        var accessGranted = new OwnershipEvent.AccessGranted(cardId, ownerId, Instant.now());
 
-        return ownershipDatabase.save(cardId, ownership, expectedVersion);
+        return addAccessOutcomes.record(
+            ownershipDatabase.save(cardId, accessGranted, expectedVersion)
+        );
     }
 
     Result revokeAccess(CardId cardId, OwnerId ownerId) {
         Ownership ownership = ownershipDatabase.find(cardId);
         var expectedVersion = ownership.version();
 
-        ownership = ownership.revoke(ownerId);
+        var accessRevoked = new OwnershipEvent.AccessRevoked(cardId, ownerId, Instant.now());
 
-        return ownershipDatabase.save(cardId, ownership, expectedVersion);
+        return revokeAccessOutcomes.record(
+            ownershipDatabase.save(cardId, accessRevoked, expectedVersion)
+        );
     }
 }
@@ -0,0 +1,119 @@
+package io.pillopl.consistency;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+record RebuildProgress(long position, long endPosition, long replayed, double eventsPerSecond, Duration eta) {
+}
+
+// Replays the global log into a handler on a fork-join pool. Each page of
+// the log is split into partitions by entity id, a card with its billing
+// cycles and ownership always falls into the same one, and partitions are
+// replayed in parallel, each in log order. The next page starts once the
+// whole page is done, so position() is a point everything before is replayed
+// and a stopped rebuild can be resumed from it. Handlers that have to resume
+// after a crash store the position passed to pageDone.
+//
+// Replay ends at the log end seen at the start. The handler should be
+// subscribed before, and be idempotent, so events appended meanwhile are
+// handled once whichever way they come.
+class ParallelRebuild {
+    private final EventStore eventStore;
+    private final Consumer<EventEnvelope> handler;
+    private final ForkJoinPool pool;
+    private final int partitions;
+    private final int pageSize;
+    private final Histogram pageLatency;
+    private volatile long position;
+    private volatile long endPosition;
+    private volatile long replayed;
+    private volatile long startedAt;
+
+    ParallelRebuild(EventStore eventStore, Consumer<EventEnvelope> handler) {
+        this(eventStore, handler, ForkJoinPool.commonPool(), 4 * ForkJoinPool.commonPool().getParallelism(), 4096, Metrics.disabled());
+    }
+
+    ParallelRebuild(
+        EventStore eventStore,
+        Consumer<EventEnvelope> handler,
+        ForkJoinPool pool,
+        int partitions,
+        int pageSize,
+        Metrics metrics
+    ) {
+        this.eventStore = eventStore;
+        this.handler = handler;
+        this.pool = pool;
+        this.partitions = partitions;
+        this.pageSize = pageSize;
+        this.pageLatency = metrics.histogram("parallelRebuild.pageLatencyNanos");
+    }
+
+    long run() {
+        return run(0);
+    }
+
+    long run(long fromPosition) {
+        return run(fromPosition, position -> {
+        });
+    }
+
+    // Returns how many events were replayed, pageDone gets the position
+    // everything before is replayed after each page
+    long run(long fromPosition, LongConsumer pageDone) {
+        position = fromPosition;
+        endPosition = eventStore.nextPosition();
+        replayed = 0;
+        startedAt = System.nanoTime();
+
+        while (position < endPosition) {
+            var page = eventStore.readAll(position, (int) Math.min(pageSize, endPosition - position));
+            if (page.isEmpty()) {
+                break;
+            }
+            var pageStartedAt = System.nanoTime();
+            var tasks = tasksOf(page).stream().map(this::replay).toList();
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            pageLatency.record(System.nanoTime() - pageStartedAt);
+
+            replayed += page.size();
+            position = page.getLast().metadata().position() + 1;
+            pageDone.accept(position);
+        }
+        return replayed;
+    }
+
+    long position() {
+        return position;
+    }
+
+    RebuildProgress progress() {
+        var elapsedSeconds = Math.max(1, System.nanoTime() - startedAt) / 1e9;
+        var rate = replayed / elapsedSeconds;
+        var remaining = Math.max(0, endPosition - position);
+        var eta = rate > 0 ? Duration.ofMillis((long) (remaining / rate * 1000)) : Duration.ZERO;
+        return new RebuildProgress(position, endPosition, replayed, rate, eta);
+    }
+
+    private List<List<EventEnvelope>> tasksOf(List<EventEnvelope> page) {
+        var byPartition = new ArrayList<List<EventEnvelope>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            byPartition.add(new ArrayList<>());
+        }
+        for (var event : page) {
+            var partition = Math.floorMod(EventStore.entityHash(event.metadata().streamId()), partitions);
+            byPartition.get(partition).add(event);
+        }
+        byPartition.removeIf(List::isEmpty);
+        return byPartition;
+    }
+
+    private ForkJoinTask<?> replay(List<EventEnvelope> partition) {
+        return ForkJoinTask.adapt(() -> partition.forEach(handler));
+    }
+}
@@ -2,23 +2,44 @@ package io.pillopl.consistency;
 
 import org.javamoney.moneta.Money;
 
+import java.util.List;
+
 class RepayService {
     private final BillingCycleDatabase billingCycleDatabase;
+    private final Outcomes repayOutcomes;
+    private final IdempotencyIndex repayments;
 
     RepayService(BillingCycleDatabase billingCycleDatabase) {
+        this(billingCycleDatabase, Metrics.disabled());
+    }
+
+    RepayService(BillingCycleDatabase billingCycleDatabase, Metrics metrics) {
+        this(billingCycleDatabase, metrics, new IdempotencyIndex());
+    }
+
+    RepayService(BillingCycleDatabase billingCycleDatabase, Metrics metrics, IdempotencyIndex repayments) {
         this.billingCycleDatabase = billingCycleDatabase;
+        this.repayOutcomes = Outcomes.of(metrics, "repayService.repay");
+        this.repayments = repayments;
+    }
+
+    Result repay(IdempotencyKey key, BillingCycleId cycleId, Money amount) {
+        return repayments.execute(key, List.of(cycleId, amount), () -> attempt(cycleId, amount));
     }
 
     Result repay(BillingCycleId cycleId, Money amount) {
+        return attempt(cycleId, amount).result();
+    }
+
+    private Outcome attempt(BillingCycleId cycleId, Money amount) {
         BillingCycle billingCycle = billingCycleDatabase.find(cycleId);
         int expectedVersion = billingCycle.version();
 
         Result result = billingCycle.repay(amount);
 
-        return result == Result.Success ?
-            billingCycleDatabase.save(billingCycle, expectedVersion)
-            : result;
-
+        return result == Result.Success
+            ? Outcome.retryable(repayOutcomes.record(billingCycleDatabase.save(billingCycle, expectedVersion)))
+            : Outcome.decided(repayOutcomes.record(result));
     }
 }
 
@@ -0,0 +1,399 @@
+package io.pillopl.consistency;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Whole event store in a single file that is memory mapped at startup
+// instead of replayed. Layout, all offsets from the file start:
+//
+//   header     magic, schema version, event count and offsets of the regions
+//   events     [length][EventCodec bytes] in position order
+//   positions  offset of every event by position, 0 for gaps in the log
+//   streams    [id length][UTF-8 id][event count][offset of every event]
+//   table      open addressing hash table of stream offsets, 0 is empty
+//   collections  [count] then [name][length][entries] of every collection
+//
+// Nothing is read at startup but the header, a stream is looked up in the
+// table and decoded the first time it's read. DatabaseCollections kept in
+// memory are restored from the image as a whole, see ImagedCollection.
+//
+// Images are a cache of the store, not its durable copy. One written by a
+// different format or event schema is refused and has to be written again.
+final class StoreImage {
+    static final int magic = 0x45564D47;
+    static final int formatVersion = 2;
+    static final int headerBytes = 64;
+    private static final int pageSize = 4096;
+
+    private StoreImage() {
+    }
+
+    static void write(EventStore eventStore, Path file) {
+        write(eventStore, file, List.of());
+    }
+
+    static void write(EventStore eventStore, Path file, List<ImagedCollection<?>> collections) {
+        var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+            out.write(new byte[headerBytes]);
+            var offset = (long) headerBytes;
+
+            var end = eventStore.nextPosition();
+            var positions = new long[Math.toIntExact(end)];
+            var streams = new LinkedHashMap<String, LongList>();
+            for (var position = 0L; position < end; ) {
+                var page = eventStore.readAll(position, (int) Math.min(pageSize, end - position));
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (var event : page) {
+                    var encoded = EventCodec.encode(event);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                    position = event.metadata().position();
+                    positions[(int) position++] = offset;
+                    streams.computeIfAbsent(event.metadata().streamId(), id -> new LongList()).add(offset);
+                    offset += Integer.BYTES + encoded.length;
+                }
+            }
+
+            var positionsOffset = offset;
+            for (var eventOffset : positions) {
+                out.writeLong(eventOffset);
+            }
+            offset += (long) Long.BYTES * positions.length;
+
+            var streamOffsets = new LinkedHashMap<String, Long>();
+            for (var stream : streams.entrySet()) {
+                streamOffsets.put(stream.getKey(), offset);
+                var id = stream.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(id.length);
+                out.write(id);
+                out.writeInt(stream.getValue().size);
+                for (int i = 0; i < stream.getValue().size; i++) {
+                    out.writeLong(stream.getValue().values[i]);
+                }
+                offset += Integer.BYTES + id.length + Integer.BYTES + (long) Long.BYTES * stream.getValue().size;
+            }
+
+            var tableOffset = offset;
+            var capacity = tableCapacity(streams.size());
+            var table = new long[capacity];
+            for (var stream : streamOffsets.entrySet()) {
+                var slot = slotOf(stream.getKey(), capacity);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot] = stream.getValue();
+            }
+            for (var streamOffset : table) {
+                out.writeLong(streamOffset);
+            }
+            offset += (long) Long.BYTES * capacity;
+
+            var collectionsOffset = offset;
+            out.writeInt(collections.size());
+            for (var collection : collections) {
+                var entries = new ByteArrayOutputStream();
+                collection.writeTo(new DataOutputStream(entries));
+                out.writeUTF(collection.name());
+                out.writeInt(entries.size());
+                entries.writeTo(out);
+            }
+            out.flush();
+
+            var header = ByteBuffer.allocate(headerBytes)
+                .putInt(magic)
+                .putInt(EventCodec.schemaVersion)
+                .putLong(end)
+                .putLong(positionsOffset)
+                .putLong(tableOffset)
+                .putInt(capacity)
+                .putInt(streams.size())
+                .putLong(collectionsOffset)
+                .putInt(formatVersion)
+                .flip();
+            channel.write(header, 0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static int tableCapacity(int streams) {
+        return Integer.highestOneBit(Math.max(1, streams * 2 - 1)) << 1;
+    }
+
+    static int slotOf(String streamId, int capacity) {
+        var hash = streamId.hashCode();
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    private static final class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
+
+// A DatabaseCollection kept in a store image under its name
+record ImagedCollection<T>(String name, DatabaseCollection<T> collection, RecordCodec<T> codec) {
+    void writeTo(DataOutput out) throws IOException {
+        collection.writeTo(out, codec);
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        collection.readFrom(in, codec);
+    }
+}
+
+// Serves streams straight from a mapped StoreImage, events appended after
+// startup go to an in-memory overlay continuing versions and positions.
+// Streams of the image are decoded on first access and kept in a direct
+// mapped cache of materializedStreams slots, a colliding stream replaces
+// the one kept before and is decoded again when read next time.
+// A single mapping limits the image to 2GB.
+class ImageEventStorage implements EventStorage {
+    private final MappedByteBuffer image;
+    private final long imageEnd;
+    private final int positionsOffset;
+    private final int tableOffset;
+    private final int capacity;
+    private final int collectionsOffset;
+    private final AtomicReferenceArray<Materialized> materialized;
+    private final int materializedMask;
+    private final InMemoryEventStorage appended = new InMemoryEventStorage();
+
+    private ImageEventStorage(MappedByteBuffer image, int materializedStreams) {
+        this.image = image;
+        if (image.capacity() < StoreImage.headerBytes || image.getInt(0) != StoreImage.magic) {
+            throw new IllegalArgumentException("Not a store image");
+        }
+        if (image.getInt(48) != StoreImage.formatVersion) {
+            throw new IllegalArgumentException("Store image format " + image.getInt(48) + " is not " + StoreImage.formatVersion);
+        }
+        if (image.getInt(4) != EventCodec.schemaVersion) {
+            throw new IllegalArgumentException("Store image of event schema " + image.getInt(4) + " is not " + EventCodec.schemaVersion);
+        }
+        this.imageEnd = image.getLong(8);
+        this.positionsOffset = Math.toIntExact(image.getLong(16));
+        this.tableOffset = Math.toIntExact(image.getLong(24));
+        this.capacity = image.getInt(32);
+        this.collectionsOffset = Math.toIntExact(image.getLong(40));
+        var slots = Integer.highestOneBit(Math.max(1, materializedStreams - 1)) << 1;
+        this.materialized = new AtomicReferenceArray<>(slots);
+        this.materializedMask = slots - 1;
+    }
+
+    static ImageEventStorage open(Path file) {
+        return open(file, 16 * 1024);
+    }
+
+    static ImageEventStorage open(Path file, int materializedStreams) {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ImageEventStorage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), materializedStreams);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Fills the collections with what the image holds under their names,
+    // collections the image doesn't have are left as they are
+    void restore(List<ImagedCollection<?>> collections) {
+        var in = new DataInputStream(new ByteArrayInputStream(bytesAt(collectionsOffset, image.capacity() - collectionsOffset)));
+        try {
+            var byName = new HashMap<String, ImagedCollection<?>>();
+            collections.forEach(collection -> byName.put(collection.name(), collection));
+            for (var count = in.readInt(); count > 0; count--) {
+                var name = in.readUTF();
+                var entries = new byte[in.readInt()];
+                in.readFully(entries);
+                var collection = byName.get(name);
+                if (collection != null) {
+                    collection.readFrom(new DataInputStream(new ByteArrayInputStream(entries)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int version(String streamId) {
+        return imagedCount(streamId) + appended.version(streamId);
+    }
+
+    @Override
+    public EventStream read(String streamId) {
+        return new EventStream(streamId, read(streamId, 1, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<EventEnvelope> read(String streamId, int fromVersion, int maxCount) {
+        var imaged = imaged(streamId);
+        var from = Math.max(0, fromVersion - 1);
+        if (from >= imaged.size()) {
+            return appended.read(streamId, from - imaged.size() + 1, maxCount);
+        }
+        var events = new ArrayList<>(imaged.subList(from, (int) Math.min(imaged.size(), (long) from + maxCount)));
+        if (events.size() < maxCount) {
+            events.addAll(appended.read(streamId, 1, maxCount - events.size()));
+        }
+        return events;
+    }
+
+    @Override
+    public List<EventEnvelope> readBackward(String streamId, int fromVersion, int maxCount) {
+        var imaged = imaged(streamId);
+        var events = new ArrayList<EventEnvelope>();
+        if (fromVersion > imaged.size()) {
+            events.addAll(appended.readBackward(streamId, fromVersion - imaged.size(), maxCount));
+        }
+        for (int i = Math.min(fromVersion, imaged.size()) - 1; i >= 0 && events.size() < maxCount; i--) {
+            events.add(imaged.get(i));
+        }
+        return events;
+    }
+
+    @Override
+    public void append(String streamId, List<EventEnvelope> events) {
+        appended.append(streamId, events);
+    }
+
+    @Override
+    public void appendAll(Map<String, List<EventEnvelope>> events) {
+        appended.appendAll(events);
+    }
+
+    @Override
+    public long nextPosition() {
+        return Math.max(imageEnd, appended.nextPosition());
+    }
+
+    @Override
+    public List<EventEnvelope> readAll(long fromPosition, int maxCount) {
+        if (fromPosition >= imageEnd) {
+            return appended.readAll(fromPosition, maxCount);
+        }
+        var events = new ArrayList<EventEnvelope>((int) Math.min(maxCount, imageEnd - fromPosition));
+        for (var position = Math.max(0, fromPosition); position < imageEnd && events.size() < maxCount; position++) {
+            var offset = image.getLong(positionsOffset + (int) position * Long.BYTES);
+            if (offset != 0) {
+                events.add(decodeAt(offset));
+            }
+        }
+        if (events.size() < maxCount) {
+            events.addAll(appended.readAll(imageEnd, maxCount - events.size()));
+        }
+        return events;
+    }
+
+    @Override
+    public Stream<String> streamIds() {
+        return IntStream.range(0, capacity)
+            .mapToLong(slot -> image.getLong(tableOffset + slot * Long.BYTES))
+            .filter(offset -> offset != 0)
+            .mapToObj(offset -> idAt((int) offset));
+    }
+
+    private List<EventEnvelope> imaged(String streamId) {
+        var slot = StoreImage.slotOf(streamId, materializedMask + 1);
+        var kept = materialized.get(slot);
+        if (kept != null && kept.streamId().equals(streamId)) {
+            return kept.events();
+        }
+        var countOffset = countOffset(streamId);
+        if (countOffset < 0) {
+            return List.of();
+        }
+        var count = image.getInt(countOffset);
+        var decoded = new ArrayList<EventEnvelope>(count);
+        for (int i = 0; i < count; i++) {
+            decoded.add(decodeAt(image.getLong(countOffset + Integer.BYTES + i * Long.BYTES)));
+        }
+        var loaded = List.copyOf(decoded);
+        materialized.set(slot, new Materialized(streamId, loaded));
+        return loaded;
+    }
+
+    // Every append checks the version, the count stored next to the
+    // stream's offsets answers it without decoding the stream
+    private int imagedCount(String streamId) {
+        var countOffset = countOffset(streamId);
+        return countOffset < 0 ? 0 : image.getInt(countOffset);
+    }
+
+    private int countOffset(String streamId) {
+        var offset = find(streamId);
+        return offset < 0 ? -1 : offset + Integer.BYTES + image.getInt(offset);
+    }
+
+    private int find(String streamId) {
+        var slot = StoreImage.slotOf(streamId, capacity);
+        while (true) {
+            var offset = image.getLong(tableOffset + slot * Long.BYTES);
+            if (offset == 0) {
+                return -1;
+            }
+            if (idAt((int) offset).equals(streamId)) {
+                return (int) offset;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private String idAt(int offset) {
+        return new String(bytesAt(offset + Integer.BYTES, image.getInt(offset)), StandardCharsets.UTF_8);
+    }
+
+    private byte[] bytesAt(int offset, int length) {
+        var bytes = new byte[length];
+        image.get(offset, bytes);
+        return bytes;
+    }
+
+    private EventEnvelope decodeAt(long offset) {
+        var length = image.getInt((int) offset);
+        return EventCodec.decode(image.slice((int) offset + Integer.BYTES, length));
+    }
+
+    private record Materialized(String streamId, List<EventEnvelope> events) {
+    }
+}
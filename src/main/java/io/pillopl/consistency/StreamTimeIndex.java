@@ -0,0 +1,99 @@
+package io.pillopl.consistency;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Sparse index of when events happened, every interval-th version of a
+// stream by its occurredAt. Answers which version a stream had at a given
+// time, so a point-in-time read stops at the next indexed event instead of
+// reading the whole stream. EventStore stamps events from a clock that never
+// goes back, so their times only grow with versions.
+//
+// An index only knows events it was subscribed to or rebuilt from, use
+// subscribedTo(). Without one, none reads streams from their start.
+class StreamTimeIndex {
+    static final StreamTimeIndex none = new StreamTimeIndex(0);
+
+    private static final int pageSize = 256;
+
+    private final int interval;
+    private final Map<String, ConcurrentSkipListMap<Instant, Integer>> streams = new ConcurrentHashMap<>();
+
+    StreamTimeIndex() {
+        this(32);
+    }
+
+    StreamTimeIndex(int interval) {
+        this.interval = interval;
+    }
+
+    static StreamTimeIndex subscribedTo(EventStore eventStore) {
+        var index = new StreamTimeIndex();
+        index.subscribeTo(eventStore);
+        return index;
+    }
+
+    void subscribeTo(EventStore eventStore) {
+        if (this == none) {
+            throw new UnsupportedOperationException("No index keeps nothing");
+        }
+        eventStore.subscribe(Object.class, null, this::onEvent);
+    }
+
+    void rebuildFrom(EventStore eventStore) {
+        new ParallelRebuild(eventStore, this::onEvent).run();
+    }
+
+    void onEvent(EventEnvelope event) {
+        var metadata = event.metadata();
+        if (interval > 0 && metadata.version() % interval == 0) {
+            streams.computeIfAbsent(metadata.streamId(), id -> new ConcurrentSkipListMap<>())
+                .merge(metadata.occurredAt(), metadata.version(), Math::min);
+        }
+    }
+
+    // Events of the stream up to the first one that occurred after the
+    // instant, so events stamped before the clock was monotonic can't
+    // bring back a later state
+    List<EventEnvelope> eventsAsOf(EventStore eventStore, String streamId, Instant instant) {
+        var index = streams.get(streamId);
+        var later = index != null ? index.higherEntry(instant) : null;
+        var maxCount = later != null ? later.getValue() : Integer.MAX_VALUE;
+
+        var events = eventStore.readEvents(streamId, 1, maxCount);
+        var cutOff = 0;
+        while (cutOff < events.size() && !events.get(cutOff).metadata().occurredAt().isAfter(instant)) {
+            cutOff++;
+        }
+        return events.subList(0, cutOff);
+    }
+
+    // Events of the stream at or before the global log position
+    static List<EventEnvelope> eventsAsOf(EventStore eventStore, String streamId, long position) {
+        var events = new ArrayList<EventEnvelope>();
+        for (var version = 1; ; version += pageSize) {
+            var page = eventStore.readEvents(streamId, version, pageSize);
+            for (var event : page) {
+                if (event.metadata().position() > position) {
+                    return events;
+                }
+                events.add(event);
+            }
+            if (page.size() < pageSize) {
+                return events;
+            }
+        }
+    }
+
+    static <T> List<T> dataOf(List<EventEnvelope> events, Class<T> eventType) {
+        return events.stream()
+            .map(EventEnvelope::data)
+            .filter(eventType::isInstance)
+            .map(eventType::cast)
+            .toList();
+    }
+}
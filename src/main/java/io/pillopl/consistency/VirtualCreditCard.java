@@ -99,6 +99,9 @@ class VirtualCreditCard implements Versioned {
     }
 
     Result assignLimit(Money limit) {
+        if (!Limit.inMinorUnits(limit)) {
+            return Result.Failure;
+        }
         return success(new LimitAssigned(cardId, limit, Instant.now()));
     }
 
@@ -246,6 +249,11 @@ record CardId(UUID contractId) {
 
 record Limit(Money max, Money used) {
 
+    // Events store whole minor units, e.g. cents, so smaller amounts are refused up front.
+    static boolean inMinorUnits(Money amount) {
+        return amount.getNumberStripped().scale() <= amount.getCurrency().getDefaultFractionDigits();
+    }
+
     static Limit initial(Money max) {
         return new Limit(max, Money.zero(max.getCurrency()));
     }
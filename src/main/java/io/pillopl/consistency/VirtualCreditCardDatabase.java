@@ -1,12 +1,24 @@
 package io.pillopl.consistency;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static io.pillopl.consistency.EventStream.aggregateStream;
 
 class VirtualCreditCardDatabase {
     private final EventStore eventStore;
+    private final StreamTimeIndex timeIndex;
 
     VirtualCreditCardDatabase(EventStore eventStore) {
+        this(eventStore, StreamTimeIndex.none);
+    }
+
+    // The index has to be subscribed to the store, see StreamTimeIndex.subscribedTo
+    VirtualCreditCardDatabase(EventStore eventStore, StreamTimeIndex timeIndex) {
         this.eventStore = eventStore;
+        this.timeIndex = timeIndex;
     }
 
     Result save(VirtualCreditCard card, int expectedVersion) {
@@ -26,16 +38,41 @@ class VirtualCreditCardDatabase {
 
         return VirtualCreditCard.recreate(events);
     }
+
+    // The card as it was at the instant, e.g. for audits and disputes
+    VirtualCreditCard findAsOf(CardId cardId, Instant instant) {
+        var events = timeIndex.eventsAsOf(eventStore, cardId.toString(), instant);
+
+        return VirtualCreditCard.recreate(StreamTimeIndex.dataOf(events, VirtualCreditCardEvent.class));
+    }
+
+    // The card as it was once the global log reached the position
+    VirtualCreditCard findAsOf(CardId cardId, long position) {
+        var events = StreamTimeIndex.eventsAsOf(eventStore, cardId.toString(), position);
+
+        return VirtualCreditCard.recreate(StreamTimeIndex.dataOf(events, VirtualCreditCardEvent.class));
+    }
 }
 
 class BillingCycleDatabase {
     private final EventStore eventStore;
+    private final StreamTimeIndex timeIndex;
 
     BillingCycleDatabase(EventStore eventStore) {
+        this(eventStore, StreamTimeIndex.none);
+    }
+
+    // The index has to be subscribed to the store, see StreamTimeIndex.subscribedTo
+    BillingCycleDatabase(EventStore eventStore, StreamTimeIndex timeIndex) {
         this.eventStore = eventStore;
+        this.timeIndex = timeIndex;
     }
 
     Result save(BillingCycle cycle, int expectedVersion) {
+        return save(cycle, ExpectedVersion.exactly(expectedVersion));
+    }
+
+    Result save(BillingCycle cycle, ExpectedVersion expectedVersion) {
         var streamId = cycle.id().toString();
 
         return eventStore.appendToStream(
@@ -45,6 +82,28 @@ class BillingCycleDatabase {
         );
     }
 
+    // Cycle and card are stored together, so opening or closing a cycle
+    // doesn't have to wait for the event handler to catch up.
+    Result save(
+        BillingCycle cycle,
+        int expectedVersion,
+        VirtualCreditCard card,
+        int expectedCardVersion
+    ) {
+        return eventStore.appendToStreams(List.of(
+            new StreamAppend(
+                cycle.id().toString(),
+                cycle.dequeuePendingEvents(),
+                expectedVersion
+            ),
+            new StreamAppend(
+                card.id().toString(),
+                card.dequeuePendingEvents(),
+                expectedCardVersion
+            )
+        ));
+    }
+
     BillingCycle find(BillingCycleId cycleId) {
         var streamId = cycleId.toString();
 
@@ -52,17 +111,106 @@ class BillingCycleDatabase {
 
         return BillingCycle.recreate(events);
     }
+
+    BillingCycle findAsOf(BillingCycleId cycleId, Instant instant) {
+        var events = timeIndex.eventsAsOf(eventStore, cycleId.toString(), instant);
+
+        return BillingCycle.recreate(StreamTimeIndex.dataOf(events, BillingCycleEvent.class));
+    }
+
+    BillingCycle findAsOf(BillingCycleId cycleId, long position) {
+        var events = StreamTimeIndex.eventsAsOf(eventStore, cycleId.toString(), position);
+
+        return BillingCycle.recreate(StreamTimeIndex.dataOf(events, BillingCycleEvent.class));
+    }
 }
 
+// Ownership changes are events in the card's "Ownership" stream, so anyone
+// can follow them with EventStore.subscribe(OwnershipEvent.class, ...).
+// Current ownerships are a projection kept up to date from that same
+// subscription, so it sees appends of other instances and replicated ones
+// alike. A stream version is its event count, same as Ownership.version.
 class OwnershipDatabase {
-    private final DatabaseCollection<Ownership> ownerships =
-        Database.collection(Ownership.class);
+    private final EventStore eventStore;
+    private final Map<CardId, Ownership> ownerships = new ConcurrentHashMap<>();
+    private final OwnershipNearCache nearCache;
+
+    OwnershipDatabase(EventStore eventStore) {
+        this(eventStore, null);
+    }
+
+    OwnershipDatabase(EventStore eventStore, OwnershipNearCache nearCache) {
+        this.eventStore = eventStore;
+        this.nearCache = nearCache;
+        eventStore.subscribe(OwnershipEvent.class, "Ownership", this::onEvent);
+    }
 
-    Result save(CardId cardId, Ownership ownership, int expectedVersion) {
-        return ownerships.save(cardId.toString(), ownership, expectedVersion);
+    // The projection is updated by the subscription before the append
+    // returns. A conflict means it may have missed an append, e.g. of
+    // another process sharing the storage, so the card is replayed.
+    Result save(CardId cardId, OwnershipEvent event, int expectedVersion) {
+        var result = eventStore.appendToStream(streamIdOf(cardId), List.of(event), expectedVersion);
+
+        if (result == Result.Failure) {
+            ownerships.compute(cardId, (id, current) -> {
+                var replayed = replay(id);
+                if (nearCache != null) {
+                    nearCache.put(id, replayed);
+                }
+                return replayed.version() > 0 ? replayed : null;
+            });
+        }
+        return result;
     }
 
     Ownership find(CardId cardId) {
-        return ownerships.find(cardId.toString()).orElse(Ownership.empty());
+        var ownership = ownerships.get(cardId);
+        if (ownership != null) {
+            return ownership;
+        }
+        ownership = replay(cardId);
+        // empty ones are not kept, most lookups of unknown cards are misses
+        return ownership.version() > 0
+            ? ownerships.merge(cardId, ownership, (current, replayed) ->
+                current.version() >= replayed.version() ? current : replayed)
+            : ownership;
+    }
+
+    boolean hasAccess(CardId cardId, OwnerId ownerId) {
+        var ownership = nearCache != null ? nearCache.load(cardId, this::find) : find(cardId);
+        return ownership.hasAccess(ownerId);
+    }
+
+    // An event right after the projected version is applied, anything else
+    // (a card not projected yet, a missed event) is replayed from the stream,
+    // which already holds this event.
+    private void onEvent(EventEnvelope envelope) {
+        var event = (OwnershipEvent) envelope.data();
+        var version = envelope.metadata().version();
+        ownerships.compute(event.cardId(), (id, current) -> {
+            if (current != null && current.version() >= version) {
+                return current;
+            }
+            Ownership updated;
+            if (current != null && current.version() == version - 1) {
+                updated = current.apply(event);
+            } else if (current == null && version == 1) {
+                updated = Ownership.empty().apply(event);
+            } else {
+                updated = replay(id);
+            }
+            if (nearCache != null) {
+                nearCache.put(id, updated);
+            }
+            return updated;
+        });
+    }
+
+    private Ownership replay(CardId cardId) {
+        return Ownership.recreate(eventStore.readEvents(OwnershipEvent.class, streamIdOf(cardId)));
+    }
+
+    static String streamIdOf(CardId cardId) {
+        return "Ownership:" + cardId.contractId();
     }
 }
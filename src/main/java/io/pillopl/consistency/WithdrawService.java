@@ -2,22 +2,70 @@ package io.pillopl.consistency;
 
 import org.javamoney.moneta.Money;
 
+import java.util.List;
+
 class WithdrawService {
 
     private final BillingCycleDatabase billingCycleDatabase;
     private final OwnershipDatabase ownershipDatabase;
+    private final Outcomes withdrawOutcomes;
+    private final IdempotencyIndex withdrawals;
+    private final WithdrawalCheck admission;
 
     WithdrawService(
         BillingCycleDatabase billingCycleDatabase,
         OwnershipDatabase ownershipDatabase
+    ) {
+        this(billingCycleDatabase, ownershipDatabase, Metrics.disabled());
+    }
+
+    WithdrawService(
+        BillingCycleDatabase billingCycleDatabase,
+        OwnershipDatabase ownershipDatabase,
+        Metrics metrics
+    ) {
+        this(billingCycleDatabase, ownershipDatabase, metrics, new IdempotencyIndex());
+    }
+
+    WithdrawService(
+        BillingCycleDatabase billingCycleDatabase,
+        OwnershipDatabase ownershipDatabase,
+        Metrics metrics,
+        IdempotencyIndex withdrawals
+    ) {
+        this(billingCycleDatabase, ownershipDatabase, metrics, withdrawals, WithdrawalCheck.admitAll);
+    }
+
+    WithdrawService(
+        BillingCycleDatabase billingCycleDatabase,
+        OwnershipDatabase ownershipDatabase,
+        Metrics metrics,
+        IdempotencyIndex withdrawals,
+        WithdrawalCheck admission
     ) {
         this.billingCycleDatabase = billingCycleDatabase;
         this.ownershipDatabase = ownershipDatabase;
+        this.withdrawOutcomes = Outcomes.of(metrics, "withdrawService.withdraw");
+        this.withdrawals = withdrawals;
+        this.admission = admission;
+    }
+
+    // Retried by terminals on timeout, the same key never withdraws twice
+    Result withdraw(IdempotencyKey key, BillingCycleId cycleId, Money amount, OwnerId ownerId) {
+        return withdrawals.execute(key, List.of(cycleId, amount, ownerId), () -> attempt(cycleId, amount, ownerId));
     }
 
     Result withdraw(BillingCycleId cycleId, Money amount, OwnerId ownerId) {
-        if (!ownershipDatabase.find(cycleId.cardId()).hasAccess(ownerId)) {
-            return Result.Failure;
+        return attempt(cycleId, amount, ownerId).result();
+    }
+
+    // Velocity rejections and version conflicts may pass on a retry
+    private Outcome attempt(BillingCycleId cycleId, Money amount, OwnerId ownerId) {
+        if (!ownershipDatabase.hasAccess(cycleId.cardId(), ownerId)) {
+            return Outcome.decided(withdrawOutcomes.record(Result.Failure));
+        }
+        if (admission.admit(cycleId.cardId(), amount) == Result.Failure) {
+            return Outcome.retryable(withdrawOutcomes.record(Result.Failure));
         }
 
         BillingCycle billingCycle = billingCycleDatabase.find(cycleId);
@@ -25,9 +73,9 @@ class WithdrawService {
 
         Result result = billingCycle.withdraw(amount);
 
-        return result == Result.Success ?
-            billingCycleDatabase.save(billingCycle, expectedVersion)
-            : Result.Failure;
+        return result == Result.Success
+            ? Outcome.retryable(withdrawOutcomes.record(billingCycleDatabase.save(billingCycle, expectedVersion)))
+            : Outcome.decided(withdrawOutcomes.record(Result.Failure));
     }
 }
 
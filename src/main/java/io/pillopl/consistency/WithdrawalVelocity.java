@@ -0,0 +1,232 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+
+import java.math.RoundingMode;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Extra rule a withdrawal has to pass before its billing cycle is even read
+interface WithdrawalCheck {
+    WithdrawalCheck admitAll = (cardId, amount) -> Result.Success;
+
+    Result admit(CardId cardId, Money amount);
+}
+
+record VelocityLimits(int perMinute, int perHour, Money perDay) {
+}
+
+// Withdrawals of every card in sliding windows: how many in the last minute
+// and hour, how much in the last 24 hours. Fed from CardWithdrawn events, so
+// it sees withdrawals of every node and never touches the streams.
+//
+// Windows are rings of buckets, each card keeps about 1.7KB of primitive
+// arrays. Every recorded withdrawal also looks at the next sweptPerRecord
+// cards and drops those without any withdrawal in the last day, so the whole
+// map is swept once per cards / sweptPerRecord withdrawals and memory is
+// bounded by the cards active within a day, without a pause for a full sweep.
+//
+// Checking happens before the append and the counters catch up after it, so
+// withdrawals of one card racing each other may all pass the same limit.
+//
+// Amounts are summed in minor units of the limits' currency, a fraction of
+// a minor unit counts as a whole one. Withdrawals in another currency are
+// rejected, and counted but not summed if one gets recorded anyway.
+class WithdrawalVelocity implements WithdrawalCheck {
+    private static final int sweptPerRecord = 2;
+
+    private final Clock clock;
+    private final VelocityLimits limits;
+    private final Map<CardId, CardWindows> cards = new ConcurrentHashMap<>();
+    private final Counter rejected;
+    private final ReentrantLock sweeping = new ReentrantLock();
+    private Iterator<CardId> sweepCursor = Collections.emptyIterator();
+
+    WithdrawalVelocity(VelocityLimits limits) {
+        this(Clock.systemUTC(), limits, Metrics.disabled());
+    }
+
+    WithdrawalVelocity(Clock clock, VelocityLimits limits, Metrics metrics) {
+        this.clock = clock;
+        this.limits = limits;
+        this.rejected = metrics.counter("withdrawalVelocity.rejected");
+    }
+
+    void subscribeTo(EventStore eventStore) {
+        eventStore.subscribe(BillingCycleEvent.CardWithdrawn.class, withdrawn ->
+            record(withdrawn.cartId(), withdrawn.amount(), withdrawn.withdrawnAt().toEpochMilli())
+        );
+    }
+
+    void record(CardId cardId, Money amount, long atMillis) {
+        var units = inLimitCurrency(amount) ? minorUnits(amount) : 0;
+        cards.compute(cardId, (id, windows) -> {
+            var current = windows != null ? windows : new CardWindows();
+            current.record(atMillis, units);
+            return current;
+        });
+        sweepSome();
+    }
+
+    @Override
+    public Result admit(CardId cardId, Money amount) {
+        if (!inLimitCurrency(amount)) {
+            return reject();
+        }
+        var windows = cards.get(cardId);
+        if (windows == null) {
+            return amount.isGreaterThan(limits.perDay()) ? reject() : Result.Success;
+        }
+        var now = clock.millis();
+        var admitted = windows.lastMinute(now) < limits.perMinute()
+            && windows.lastHour(now) < limits.perHour()
+            && windows.lastDayAmount(now) + minorUnits(amount) <= minorUnits(limits.perDay());
+        return admitted ? Result.Success : reject();
+    }
+
+    int withdrawalsInLastMinute(CardId cardId) {
+        var windows = cards.get(cardId);
+        return windows != null ? (int) windows.lastMinute(clock.millis()) : 0;
+    }
+
+    int withdrawalsInLastHour(CardId cardId) {
+        var windows = cards.get(cardId);
+        return windows != null ? (int) windows.lastHour(clock.millis()) : 0;
+    }
+
+    int trackedCards() {
+        return cards.size();
+    }
+
+    private Result reject() {
+        rejected.increment();
+        return Result.Failure;
+    }
+
+    void sweep() {
+        var now = clock.millis();
+        for (var cardId : cards.keySet()) {
+            dropIfIdle(cardId, now);
+        }
+    }
+
+    // Recording threads that find another one sweeping just go on
+    private void sweepSome() {
+        if (!sweeping.tryLock()) {
+            return;
+        }
+        try {
+            var now = clock.millis();
+            for (int i = 0; i < sweptPerRecord; i++) {
+                if (!sweepCursor.hasNext()) {
+                    sweepCursor = cards.keySet().iterator();
+                    if (!sweepCursor.hasNext()) {
+                        return;
+                    }
+                }
+                dropIfIdle(sweepCursor.next(), now);
+            }
+        } finally {
+            sweeping.unlock();
+        }
+    }
+
+    // Each card is removed under its map entry lock, a withdrawal recorded
+    // meanwhile either comes before and keeps it, or after and recreates it.
+    private void dropIfIdle(CardId cardId, long now) {
+        cards.computeIfPresent(cardId, (id, windows) -> windows.isIdle(now) ? null : windows);
+    }
+
+    private boolean inLimitCurrency(Money amount) {
+        return amount.getCurrency().equals(limits.perDay().getCurrency());
+    }
+
+    private static long minorUnits(Money amount) {
+        return amount.getNumberStripped()
+            .setScale(amount.getCurrency().getDefaultFractionDigits(), RoundingMode.UP)
+            .unscaledValue()
+            .longValueExact();
+    }
+
+    private static final class CardWindows {
+        private final SlidingWindow minute = new SlidingWindow(60, Duration.ofSeconds(1));
+        private final SlidingWindow hour = new SlidingWindow(60, Duration.ofMinutes(1));
+        private final SlidingWindow dayAmount = new SlidingWindow(96, Duration.ofMinutes(15));
+
+        synchronized void record(long atMillis, long amount) {
+            minute.add(atMillis, 1);
+            hour.add(atMillis, 1);
+            dayAmount.add(atMillis, amount);
+        }
+
+        synchronized long lastMinute(long now) {
+            return minute.total(now);
+        }
+
+        synchronized long lastHour(long now) {
+            return hour.total(now);
+        }
+
+        synchronized long lastDayAmount(long now) {
+            return dayAmount.total(now);
+        }
+
+        synchronized boolean isIdle(long now) {
+            return dayAmount.total(now) == 0 && hour.total(now) == 0;
+        }
+    }
+}
+
+// Sum over the last buckets * bucketDuration as a ring of bucket sums plus
+// their running total. Moving forward clears the buckets passed, at most the
+// whole ring, so adding and reading are O(1) amortized. Values older than
+// the window are ignored, late ones still inside it land in their bucket.
+final class SlidingWindow {
+    private final long[] buckets;
+    private final long bucketMillis;
+    private long lastBucket = Long.MIN_VALUE;
+    private long total;
+
+    SlidingWindow(int buckets, Duration bucketDuration) {
+        this.buckets = new long[buckets];
+        this.bucketMillis = bucketDuration.toMillis();
+    }
+
+    void add(long atMillis, long value) {
+        var bucket = Math.floorDiv(atMillis, bucketMillis);
+        advanceTo(bucket);
+        if (lastBucket - bucket >= buckets.length) {
+            return;
+        }
+        buckets[Math.floorMod(bucket, buckets.length)] += value;
+        total += value;
+    }
+
+    long total(long nowMillis) {
+        advanceTo(Math.floorDiv(nowMillis, bucketMillis));
+        return total;
+    }
+
+    private void advanceTo(long bucket) {
+        if (bucket <= lastBucket) {
+            return;
+        }
+        if (lastBucket == Long.MIN_VALUE || bucket - lastBucket >= buckets.length) {
+            Arrays.fill(buckets, 0);
+            total = 0;
+        } else {
+            for (var passed = lastBucket + 1; passed <= bucket; passed++) {
+                var index = Math.floorMod(passed, buckets.length);
+                total -= buckets[index];
+                buckets[index] = 0;
+            }
+        }
+        lastBucket = bucket;
+    }
+}
@@ -0,0 +1,49 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BillingCycleIndexTest {
+    EventStore eventStore = new EventStore();
+    VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+    BillingCycleDatabase billingCycleDatabase = new BillingCycleDatabase(eventStore);
+    BillingCycleService billingCycleService = new BillingCycleService(creditCardDatabase, billingCycleDatabase);
+    BillingCycleIndex index = new BillingCycleIndex();
+
+    @Test
+    void findsCyclesByEndDate() {
+        // given
+        index.subscribeTo(eventStore);
+        var cycleId = openCycleOfNewCard();
+
+        // expect
+        assertEquals(List.of(cycleId), index.endingOn(cycleId.to()).toList());
+        assertEquals(List.of(cycleId), index.endingBetween(cycleId.from(), cycleId.to()).toList());
+        assertEquals(List.of(), index.endingOn(cycleId.to().plusDays(1)).toList());
+    }
+
+    @Test
+    void rebuildsFromCyclesAlreadyStored() {
+        // given
+        var cycleId = openCycleOfNewCard();
+
+        // when
+        index.rebuildFrom(eventStore);
+
+        // then
+        assertEquals(List.of(cycleId), index.endingOn(cycleId.to()).toList());
+    }
+
+    BillingCycleId openCycleOfNewCard() {
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        billingCycleService.openNextCycle(card.id());
+        return billingCycleService.getCurrentlyOpenedBillingCycleId(card.id()).orElseThrow();
+    }
+}
@@ -0,0 +1,174 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BillingCycleSchedulerTest {
+    EventStore eventStore = new EventStore();
+    VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+    BillingCycleDatabase billingCycleDatabase = new BillingCycleDatabase(eventStore);
+    BillingCycleService billingCycleService = new BillingCycleService(creditCardDatabase, billingCycleDatabase);
+    WithdrawalVelocityTest.MovingClock clock = new WithdrawalVelocityTest.MovingClock(Instant.now());
+    MetricsRegistry metrics = new MetricsRegistry();
+    BillingCycleScheduler scheduler = new BillingCycleScheduler(billingCycleService, clock, 4, 2, metrics);
+
+    @AfterEach
+    void afterEach() {
+        scheduler.stop();
+    }
+
+    @Test
+    void closesDueCycleAndOpensNextOne() {
+        // given
+        scheduler.subscribeTo(eventStore);
+        var card = newCard();
+        billingCycleService.openNextCycle(card);
+        var cycleId = billingCycleService.getCurrentlyOpenedBillingCycleId(card).orElseThrow();
+
+        // expect
+        assertEquals(0, scheduler.runDue(cycleId.to()));
+
+        // when
+        var handled = scheduler.runDue(cycleId.to().plusDays(1));
+
+        // then
+        assertEquals(1, handled);
+        assertEquals(cycleId.next(), billingCycleService.getCurrentlyOpenedBillingCycleId(card).orElseThrow());
+        assertEquals(1, scheduler.pending());
+    }
+
+    @Test
+    void handlesBoundedNumberOfCyclesPerRun() {
+        // given
+        scheduler.subscribeTo(eventStore);
+        for (int i = 0; i < 3; i++) {
+            billingCycleService.openNextCycle(newCard());
+        }
+        var afterCycleEnds = BillingCycleId.fromNow(CardId.random()).to().plusDays(1);
+
+        // expect
+        assertEquals(2, scheduler.runDue(afterCycleEnds));
+        assertEquals(1, scheduler.runDue(afterCycleEnds));
+    }
+
+    @Test
+    void rebuildsOpenedCyclesFromEventLog() {
+        // given
+        var card = newCard();
+        billingCycleService.openNextCycle(card);
+        var cycleId = billingCycleService.getCurrentlyOpenedBillingCycleId(card).orElseThrow();
+        billingCycleService.close(cycleId);
+        billingCycleService.openNextCycle(card);
+
+        // when
+        scheduler.rebuildFrom(eventStore);
+
+        // then
+        assertEquals(1, scheduler.pending());
+        assertEquals(1, scheduler.runDue(cycleId.next().to().plusDays(1)));
+    }
+
+    @Test
+    void retriesFailedCycleAfterBackoff() {
+        // given
+        var missingCard = BillingCycleId.fromNow(CardId.random());
+        scheduler.schedule(missingCard);
+        var afterCycleEnds = missingCard.to().plusDays(1);
+
+        // when
+        var handled = scheduler.runDue(afterCycleEnds);
+
+        // then
+        assertEquals(0, handled);
+        assertEquals(1, metrics.counter("billingCycleScheduler.failed").count());
+        assertEquals(1, scheduler.pending());
+        assertEquals(0, scheduler.runDue(afterCycleEnds));
+        assertEquals(1, metrics.counter("billingCycleScheduler.failed").count());
+
+        // when
+        clock.advance(Duration.ofSeconds(1));
+        scheduler.runDue(afterCycleEnds);
+
+        // then
+        assertEquals(2, metrics.counter("billingCycleScheduler.failed").count());
+        assertEquals(1, scheduler.pending());
+    }
+
+    @Test
+    void retriesOpeningNextCycleAfterLosingRaceForCard() {
+        // given
+        var racingCards = new RacingCards(eventStore);
+        var service = new BillingCycleService(racingCards, billingCycleDatabase) {
+            boolean raced;
+
+            @Override
+            Result close(BillingCycleId cycleId) {
+                var closed = super.close(cycleId);
+                racingCards.raceOnNextFind = !raced;
+                raced = true;
+                return closed;
+            }
+        };
+        scheduler.stop();
+        scheduler = new BillingCycleScheduler(service, clock, 1, 1, metrics);
+        var card = newCard();
+        service.openNextCycle(card);
+        var cycleId = service.getCurrentlyOpenedBillingCycleId(card).orElseThrow();
+        scheduler.schedule(cycleId);
+        var afterCycleEnds = cycleId.to().plusDays(1);
+
+        // when
+        var handled = scheduler.runDue(afterCycleEnds);
+
+        // then
+        assertEquals(0, handled);
+        assertEquals(Optional.empty(), service.getCurrentlyOpenedBillingCycleId(card));
+        assertEquals(1, metrics.counter("billingCycleScheduler.failed").count());
+        assertEquals(1, scheduler.pending());
+
+        // when
+        clock.advance(Duration.ofSeconds(1));
+        handled = scheduler.runDue(afterCycleEnds);
+
+        // then
+        assertEquals(1, handled);
+        assertEquals(cycleId.next(), service.getCurrentlyOpenedBillingCycleId(card).orElseThrow());
+    }
+
+    // Another writer changes the card right after it was read
+    static class RacingCards extends VirtualCreditCardDatabase {
+        boolean raceOnNextFind;
+
+        RacingCards(EventStore eventStore) {
+            super(eventStore);
+        }
+
+        @Override
+        VirtualCreditCard find(CardId cardId) {
+            var card = super.find(cardId);
+            if (raceOnNextFind) {
+                raceOnNextFind = false;
+                var concurrent = super.find(cardId);
+                var version = concurrent.version();
+                concurrent.assignLimit(Money.of(200, "USD"));
+                save(concurrent, version);
+            }
+            return card;
+        }
+    }
+
+    CardId newCard() {
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        return card.id();
+    }
+}
@@ -25,6 +25,21 @@ class BillingCycleTest {
         assertEquals(Money.of(50, "USD"), creditCard.availableLimit());
     }
 
+    @Test
+    void cantWithdrawOrRepayFractionsOfCent() {
+        //given
+        BillingCycle creditCard = BillingCycle.withLimit(of(100, "USD"));
+
+        //when
+        Result withdrawal = creditCard.withdraw(of(0.001, "USD"));
+        Result repayment = creditCard.repay(of(0.005, "USD"));
+
+        //then
+        assertEquals(Failure, withdrawal);
+        assertEquals(Failure, repayment);
+        assertEquals(Money.of(100, "USD"), creditCard.availableLimit());
+    }
+
     @Test
     void cantWithdrawMoreThanLimit() {
         //given
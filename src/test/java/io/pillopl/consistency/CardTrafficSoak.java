@@ -0,0 +1,289 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+
+import javax.money.Monetary;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+// Drives the services with a production-like mix from virtual threads and
+// prints latency percentiles, throughput, conflict rate and heap every
+// interval. Hot cards follow a Zipf distribution, every card has up to two
+// owners, and days pass faster than real time so cycles roll over. Like a
+// well behaved cardholder the harness pays off a cycle once it ends and
+// before it's closed, so cards aren't deactivated for debt, withdraws only as
+// one of the owners with access and stops at the withdrawals a cycle allows.
+// Fails at the end when fewer withdrawals than soak.minWithdrawSuccess went
+// through, the rest should be conflicts only.
+// Run main() on the test classpath, tune it with -Dsoak.* properties below.
+class CardTrafficSoak {
+    // BillingCycle.withdraw rejects any more
+    static final int maxWithdrawalsInCycle = 45;
+
+    final int cards = Integer.getInteger("soak.cards", 10_000);
+    final int threads = Integer.getInteger("soak.threads", 64);
+    final long seconds = Long.getLong("soak.seconds", 60);
+    final long reportEverySeconds = Long.getLong("soak.reportEverySeconds", 5);
+    final long dayMillis = Long.getLong("soak.dayMillis", 1_000);
+    final double zipfExponent = Double.parseDouble(System.getProperty("soak.zipfExponent", "1.1"));
+    final double minWithdrawSuccess = Double.parseDouble(System.getProperty("soak.minWithdrawSuccess", "0.9"));
+
+    final MetricsRegistry metrics = new MetricsRegistry();
+    final EventStore eventStore = new EventStore(metrics);
+    final VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+    final BillingCycleDatabase billingCycleDatabase = new BillingCycleDatabase(eventStore);
+    final OwnershipDatabase ownershipDatabase = new OwnershipDatabase(eventStore, new OwnershipNearCache(cards));
+
+    final WithdrawService withdrawService = new WithdrawService(billingCycleDatabase, ownershipDatabase, metrics);
+    final RepayService repayService = new RepayService(billingCycleDatabase, metrics);
+    final OwnershipService ownershipService = new OwnershipService(ownershipDatabase, metrics);
+    final BillingCycleService billingCycleService = new BillingCycleService(creditCardDatabase, billingCycleDatabase, metrics);
+    final BillingCycleScheduler scheduler = new BillingCycleScheduler(billingCycleService, Clock.systemDefaultZone(), 8, 10_000);
+
+    final CardId[] cardIds = new CardId[cards];
+    final OwnerId[][] owners = new OwnerId[cards][2];
+    final AtomicReferenceArray<BillingCycleId> openedCycles = new AtomicReferenceArray<>(cards);
+    final AtomicIntegerArray secondOwnerHasAccess = new AtomicIntegerArray(cards);
+    final AtomicIntegerArray withdrawalsInCycle = new AtomicIntegerArray(cards);
+    final double[] zipf = zipfDistribution(cards, zipfExponent);
+
+    final AtomicReference<Interval> interval = new AtomicReference<>(new Interval());
+    final Interval total = new Interval();
+    final long startedAt = System.currentTimeMillis();
+
+    public static void main(String[] args) throws InterruptedException {
+        new CardTrafficSoak().run();
+    }
+
+    void run() throws InterruptedException {
+        setUpCards();
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        var timer = Executors.newSingleThreadScheduledExecutor();
+        timer.scheduleAtFixedRate(this::endOfDay, dayMillis, dayMillis, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::report, reportEverySeconds, reportEverySeconds, TimeUnit.SECONDS);
+
+        try (var workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < threads; i++) {
+                workers.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        nextOperation();
+                    }
+                });
+            }
+        }
+        timer.shutdownNow();
+        scheduler.stop();
+        report();
+        summary();
+    }
+
+    void endOfDay() {
+        var today = today();
+        for (int card = 0; card < cards; card++) {
+            var cycle = openedCycle(card);
+            if (cycle.to().isBefore(today)) {
+                payOff(cycle);
+            }
+        }
+        scheduler.runDue(today);
+    }
+
+    // Repaying more than is used tops the limit up to its max
+    void payOff(BillingCycleId cycleId) {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            var cycle = billingCycleDatabase.find(cycleId);
+            if (cycle.limit().used().isZero()) {
+                return;
+            }
+            if (repayService.repay(cycleId, cycle.limit().used()) == Result.Success) {
+                return;
+            }
+        }
+    }
+
+    void setUpCards() {
+        scheduler.subscribeTo(eventStore);
+        for (int i = 0; i < cards; i++) {
+            var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+            card.assignLimit(Money.of(1_000, "USD"));
+            creditCardDatabase.save(card, 0);
+            cardIds[i] = card.id();
+            owners[i][0] = OwnerId.random();
+            owners[i][1] = OwnerId.random();
+            ownershipService.addAccess(card.id(), owners[i][0]);
+            billingCycleService.openNextCycle(card.id());
+        }
+    }
+
+    void nextOperation() {
+        var random = ThreadLocalRandom.current();
+        var card = hotCard(random.nextDouble());
+        var roll = random.nextInt(100);
+
+        var cycle = openedCycle(card);
+        // an ended cycle only waits to be paid off and closed
+        if (roll < 75 && (cycle.to().isBefore(today())
+            || withdrawalsInCycle.get(card) >= maxWithdrawalsInCycle)) {
+            return;
+        }
+        if (roll < 75) {
+            var owner = secondOwnerHasAccess.get(card) == 1 ? random.nextInt(2) : 0;
+            measure(Operation.withdraw, () -> {
+                var result = withdrawService.withdraw(
+                    cycle, Money.of(random.nextInt(1, 20), "USD"), owners[card][owner]
+                );
+                if (result == Result.Success) {
+                    withdrawalsInCycle.incrementAndGet(card);
+                }
+                return result;
+            });
+        } else if (roll < 92) {
+            measure(Operation.repay, () -> repayService.repay(
+                cycle, Money.of(random.nextInt(1, 20), "USD")
+            ));
+        } else {
+            var owner = owners[card][1];
+            var granted = secondOwnerHasAccess.get(card) == 1;
+            measure(Operation.changeAccess, () -> {
+                var result = granted
+                    ? ownershipService.revokeAccess(cardIds[card], owner)
+                    : ownershipService.addAccess(cardIds[card], owner);
+                if (result == Result.Success) {
+                    secondOwnerHasAccess.compareAndSet(card, granted ? 1 : 0, granted ? 0 : 1);
+                }
+                return result;
+            });
+        }
+    }
+
+    // Cycle ids are remembered until they end,
+    // then the card tells which one is opened now.
+    BillingCycleId openedCycle(int card) {
+        var cycle = openedCycles.get(card);
+        if (cycle == null || !cycle.to().isAfter(today().minusDays(1))) {
+            cycle = billingCycleService.getCurrentlyOpenedBillingCycleId(cardIds[card])
+                .orElse(BillingCycleId.fromNow(cardIds[card]));
+            if (!cycle.equals(openedCycles.getAndSet(card, cycle))) {
+                withdrawalsInCycle.set(card, 0);
+            }
+        }
+        return cycle;
+    }
+
+    void measure(Operation operation, Supplier<Result> command) {
+        var start = System.nanoTime();
+        var result = command.get();
+        var latency = System.nanoTime() - start;
+        interval.get().record(operation, latency, result);
+        total.record(operation, latency, result);
+    }
+
+    LocalDate today() {
+        return LocalDate.now().plusDays((System.currentTimeMillis() - startedAt) / dayMillis);
+    }
+
+    int hotCard(double uniform) {
+        var index = Arrays.binarySearch(zipf, uniform);
+        return Math.min(cards - 1, index >= 0 ? index : -index - 1);
+    }
+
+    static double[] zipfDistribution(int size, double exponent) {
+        var cumulative = new double[size];
+        var sum = 0.0;
+        for (int rank = 1; rank <= size; rank++) {
+            sum += 1 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = sum;
+        }
+        for (int i = 0; i < size; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    long lastConflicts;
+    long lastAppends;
+
+    void report() {
+        var finished = interval.getAndSet(new Interval());
+        var elapsedSeconds = (System.nanoTime() - finished.startedAt) / 1e9;
+
+        var conflicts = metrics.counter("eventStore.append.conflicts").count();
+        var appends = metrics.histogram("eventStore.append.events").count();
+        var attempts = conflicts - lastConflicts + appends - lastAppends;
+        var conflictRate = attempts == 0 ? 0 : (double) (conflicts - lastConflicts) / attempts;
+        lastConflicts = conflicts;
+        lastAppends = appends;
+
+        var runtime = Runtime.getRuntime();
+        var heapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+
+        System.out.printf(
+            "%6ds day %s heap %dMB conflicts %.2f%% cycles pending %d%n",
+            (System.currentTimeMillis() - startedAt) / 1000, today(), heapMb, conflictRate * 100, scheduler.pending()
+        );
+        for (var operation : Operation.values()) {
+            var latency = finished.latencies[operation.ordinal()];
+            System.out.printf(
+                "    %-13s %9.0f ops/s  failed %5.1f%%  p50 %7.1fus  p99 %7.1fus  p999 %8.1fus%n",
+                operation,
+                latency.count() / elapsedSeconds,
+                latency.count() == 0 ? 0 : 100.0 * finished.failures[operation.ordinal()].count() / latency.count(),
+                latency.valueAtPercentile(50) / 1e3,
+                latency.valueAtPercentile(99) / 1e3,
+                latency.valueAtPercentile(99.9) / 1e3
+            );
+        }
+    }
+
+    void summary() {
+        System.out.println("whole run");
+        for (var operation : Operation.values()) {
+            System.out.printf(
+                "    %-13s %9d ops  succeeded %5.1f%%%n",
+                operation, total.latencies[operation.ordinal()].count(), 100 * total.successRatio(operation)
+            );
+        }
+        if (total.successRatio(Operation.withdraw) < minWithdrawSuccess) {
+            throw new IllegalStateException(
+                "Only " + total.successRatio(Operation.withdraw) + " of withdrawals succeeded, expected " + minWithdrawSuccess
+            );
+        }
+    }
+
+    enum Operation {
+        withdraw, repay, changeAccess
+    }
+
+    static class Interval {
+        final long startedAt = System.nanoTime();
+        final LogLinearHistogram[] latencies = new LogLinearHistogram[Operation.values().length];
+        final AdderCounter[] failures = new AdderCounter[Operation.values().length];
+
+        Interval() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LogLinearHistogram();
+                failures[i] = new AdderCounter();
+            }
+        }
+
+        void record(Operation operation, long latencyNanos, Result result) {
+            latencies[operation.ordinal()].record(latencyNanos);
+            if (result == Result.Failure) {
+                failures[operation.ordinal()].increment();
+            }
+        }
+
+        double successRatio(Operation operation) {
+            var count = latencies[operation.ordinal()].count();
+            return count == 0 ? 1 : 1 - (double) failures[operation.ordinal()].count() / count;
+        }
+    }
+}
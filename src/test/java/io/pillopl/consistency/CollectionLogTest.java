@@ -0,0 +1,114 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CollectionLogTest {
+    @TempDir
+    Path directory;
+
+    record Balance(String owner, long amount) {
+    }
+
+    static RecordCodec<Balance> codec = new RecordCodec<>() {
+        @Override
+        public void write(Balance record, DataOutput out) throws IOException {
+            out.writeUTF(record.owner());
+            out.writeLong(record.amount());
+        }
+
+        @Override
+        public Balance read(DataInput in) throws IOException {
+            return new Balance(in.readUTF(), in.readLong());
+        }
+    };
+
+    @Test
+    void recoversSavesAfterRestart() {
+        // given
+        var collection = open(1024 * 1024);
+        collection.save("a", new Balance("oskar", 10), 0);
+        collection.save("a", new Balance("oskar", 20), 1);
+        collection.save("b", new Balance("kuba", 5), 0);
+        collection.close();
+
+        // when
+        var restarted = open(1024 * 1024);
+
+        // then
+        assertEquals(Optional.of(new Balance("oskar", 20)), restarted.find("a"));
+        assertEquals(Result.Failure, restarted.save("a", new Balance("oskar", 30), 1));
+        assertEquals(Result.Success, restarted.save("a", new Balance("oskar", 30), 2));
+        restarted.close();
+    }
+
+    @Test
+    void recoversFromSnapshotAndNewerLog() throws IOException {
+        // given
+        var collection = open(100);
+        for (int i = 0; i < 50; i++) {
+            collection.save("a", new Balance("oskar", i), i);
+            collection.flush();
+        }
+        collection.close();
+
+        // when
+        var restarted = open(100);
+
+        // then
+        assertEquals(Optional.of(new Balance("oskar", 49)), restarted.find("a"));
+        try (var files = Files.list(directory)) {
+            assertTrue(files.count() <= 3);
+        }
+        restarted.close();
+    }
+
+    @Test
+    void flushAndCloseOfInMemoryCollectionDoNothing() {
+        // given
+        var collection = Database.collection(Balance.class);
+        collection.save("a", new Balance("oskar", 10), 0);
+
+        // when
+        collection.flush();
+        collection.close();
+
+        // then
+        assertEquals(Optional.of(new Balance("oskar", 10)), collection.find("a"));
+    }
+
+    @Test
+    void refusedSaveIsNotLogged() {
+        // given
+        var collection = open(1024 * 1024);
+        collection.save("a", new Balance("oskar", 10), 0);
+        collection.save("a", new Balance("kuba", 20), 0);
+        collection.close();
+
+        // when
+        var restarted = open(1024 * 1024);
+
+        // then
+        assertEquals(Optional.of(new Balance("oskar", 10)), restarted.find("a"));
+        restarted.close();
+    }
+
+    DatabaseCollection<Balance> open(long checkpointBytes) {
+        return Database.durableCollection(
+            Balance.class,
+            new CollectionLog<>(directory, codec, Duration.ofMillis(1), checkpointBytes),
+            Metrics.disabled()
+        );
+    }
+}
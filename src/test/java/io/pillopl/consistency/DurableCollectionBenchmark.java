@@ -0,0 +1,73 @@
+package io.pillopl.consistency;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+// Latency of a checkpoint save to a logged collection against one kept only
+// in memory. A logged save returns once queued, before the group commit
+// fsyncs it, so this isn't the time to get it on disk. The logged p99
+// should stay under 10us. Run main().
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DurableCollectionBenchmark {
+    @Param({"true", "false"})
+    boolean durable;
+
+    Path directory;
+    DatabaseCollection<StreamCheckpoint> collection;
+    int version;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("collection");
+        collection = durable
+            ? Database.durableCollection(StreamCheckpoint.class, new CollectionLog<>(directory, StreamCheckpoint.codec), Metrics.disabled())
+            : Database.collection(StreamCheckpoint.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        collection.close();
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Result save() {
+        var result = collection.save("handler@Card:1", new StreamCheckpoint(version + 1, 0), version);
+        version++;
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(DurableCollectionBenchmark.class.getSimpleName())
+            .build()
+        ).run();
+    }
+}
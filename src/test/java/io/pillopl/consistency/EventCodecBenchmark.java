@@ -0,0 +1,173 @@
+package io.pillopl.consistency;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.javamoney.moneta.Money;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static io.pillopl.consistency.BillingCycleEvent.CardWithdrawn;
+
+// Compares the binary codec with Java serialization and JSON for the most
+// frequent event. Run main() to get ns per encode/decode and bytes per event.
+// Events aren't Serializable, so the Java serialization baseline writes
+// their components, which is what a Serializable record would write as well.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventCodecBenchmark {
+    CardId cardId = CardId.random();
+    CardWithdrawn event = new CardWithdrawn(
+        BillingCycleId.fromNow(cardId),
+        cardId,
+        Money.of(12.34, "USD"),
+        Instant.now()
+    );
+    EventEnvelope envelope = EventEnvelope.from(event.cycleId().toString(), event, 17, 123_456);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    ByteBuffer encodedEvent = ByteBuffer.allocateDirect(1024);
+    ByteBuffer encodedEnvelope = ByteBuffer.allocateDirect(1024);
+    byte[] javaSerialized;
+    byte[] json;
+
+    public EventCodecBenchmark() {
+        EventCodec.encodeEvent(event, encodedEvent);
+        encodedEvent.flip();
+        EventCodec.encode(envelope, encodedEnvelope);
+        encodedEnvelope.flip();
+        javaSerialized = javaSerializationEncode();
+        json = jsonEncode();
+    }
+
+    @Benchmark
+    public ByteBuffer codecEncode() {
+        EventCodec.encodeEvent(event, buffer.clear());
+        return buffer;
+    }
+
+    @Benchmark
+    public Object codecDecode() {
+        return EventCodec.decodeEvent(encodedEvent.rewind());
+    }
+
+    @Benchmark
+    public ByteBuffer codecEncodeWithMetadata() {
+        EventCodec.encode(envelope, buffer.clear());
+        return buffer;
+    }
+
+    @Benchmark
+    public EventEnvelope codecDecodeWithMetadata() {
+        return EventCodec.decode(encodedEnvelope.rewind());
+    }
+
+    @Benchmark
+    public byte[] javaSerializationEncode() {
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new ObjectOutputStream(bytes)) {
+            output.writeObject(new Object[]{
+                event.cycleId().cardId().contractId(),
+                event.cycleId().from(),
+                event.cycleId().to(),
+                event.cartId().contractId(),
+                event.amount(),
+                event.withdrawnAt()
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaSerializationDecode() {
+        try (var input = new ObjectInputStream(new ByteArrayInputStream(javaSerialized))) {
+            var fields = (Object[]) input.readObject();
+            return new CardWithdrawn(
+                new BillingCycleId(new CardId((UUID) fields[0]), (LocalDate) fields[1], (LocalDate) fields[2]),
+                new CardId((UUID) fields[3]),
+                (Money) fields[4],
+                (Instant) fields[5]
+            );
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() {
+        var cycleId = new JSONObject();
+        cycleId.put("cardId", event.cycleId().cardId().contractId().toString());
+        cycleId.put("from", event.cycleId().from().toString());
+        cycleId.put("to", event.cycleId().to().toString());
+        var amount = new JSONObject();
+        amount.put("amount", event.amount().getNumberStripped().toPlainString());
+        amount.put("currency", event.amount().getCurrency().getCurrencyCode());
+        var json = new JSONObject();
+        json.put("cycleId", cycleId);
+        json.put("cartId", event.cartId().contractId().toString());
+        json.put("amount", amount);
+        json.put("withdrawnAt", event.withdrawnAt().toString());
+        return json.toJSONString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object jsonDecode() {
+        var json = (JSONObject) JSONValue.parse(new String(this.json, StandardCharsets.UTF_8));
+        var cycleId = (JSONObject) json.get("cycleId");
+        var amount = (JSONObject) json.get("amount");
+        return new CardWithdrawn(
+            new BillingCycleId(
+                new CardId(UUID.fromString((String) cycleId.get("cardId"))),
+                LocalDate.parse((String) cycleId.get("from")),
+                LocalDate.parse((String) cycleId.get("to"))
+            ),
+            new CardId(UUID.fromString((String) json.get("cartId"))),
+            Money.of(new BigDecimal((String) amount.get("amount")), (String) amount.get("currency")),
+            Instant.parse((String) json.get("withdrawnAt"))
+        );
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        var sizes = new EventCodecBenchmark();
+        System.out.printf(
+            "bytes per event: codec %d, codec with metadata %d, java serialization %d, json %d%n",
+            sizes.encodedEvent.remaining(),
+            sizes.encodedEnvelope.remaining(),
+            sizes.javaSerialized.length,
+            sizes.json.length
+        );
+
+        new Runner(new OptionsBuilder()
+            .include(EventCodecBenchmark.class.getSimpleName())
+            .build()
+        ).run();
+    }
+}
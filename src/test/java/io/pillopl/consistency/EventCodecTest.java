@@ -0,0 +1,80 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+
+import static org.javamoney.moneta.Money.of;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EventCodecTest {
+    static CardId cardId = CardId.random();
+    static BillingCycleId cycleId = BillingCycleId.fromNow(cardId);
+    static Limit limit = new Limit(of(100, "USD"), of(12.34, "USD"));
+    static Instant now = Instant.now();
+
+    static List<Object> allEvents = List.of(
+        new BillingCycleEvent.CycleOpened(cycleId, cardId, cycleId.from(), cycleId.to(), limit, now),
+        new BillingCycleEvent.CardRepaid(cycleId, cardId, of(10, "USD"), now),
+        new BillingCycleEvent.CardWithdrawn(cycleId, cardId, of(0.01, "USD"), now),
+        new BillingCycleEvent.CycleClosed(cycleId, cardId, limit, 45, now),
+        new VirtualCreditCardEvent.CardCreated(cardId, Monetary.getCurrency("USD"), now),
+        new VirtualCreditCardEvent.LimitAssigned(cardId, of(1000, "USD"), now),
+        new VirtualCreditCardEvent.CardDeactivated(cardId, now),
+        new VirtualCreditCardEvent.CycleOpened(cycleId, cardId, cycleId.from(), cycleId.to(), limit, now),
+        new VirtualCreditCardEvent.CycleClosed(cycleId, cardId, of(-5, "USD"), now),
+        new OwnershipEvent.AccessGranted(cardId, OwnerId.random(), now),
+        new OwnershipEvent.AccessRevoked(cardId, OwnerId.random(), now)
+    );
+
+    @Test
+    void decodesWhatWasEncoded() {
+        for (var event : allEvents) {
+            // given
+            var envelope = EventEnvelope.from(cardId.toString(), event, 7, 42);
+            var buffer = ByteBuffer.allocate(512);
+
+            // when
+            EventCodec.encode(envelope, buffer);
+            var decoded = EventCodec.decode(buffer.flip());
+
+            // then
+            assertEquals(envelope, decoded);
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void varintsRoundTrip() {
+        for (var value : List.of(0L, 1L, -1L, 63L, -64L, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE)) {
+            var buffer = ByteBuffer.allocate(10);
+
+            EventCodec.putVarLong(buffer, value);
+
+            assertEquals(value, EventCodec.getVarLong(buffer.flip()));
+        }
+    }
+
+    @Test
+    void unknownCurrencyCodeIsNamed() {
+        // given
+        var buffer = ByteBuffer.allocate(64);
+        buffer.put(EventCodec.schemaVersion);
+        EventCodec.putVarLong(buffer, EventTypes.idOf(VirtualCreditCardEvent.CardCreated.class));
+        buffer.putLong(1).putLong(2);
+        EventCodec.putVarLong(buffer, 1);
+        EventCodec.putVarLong(buffer, 0);
+        EventCodec.putVarLong(buffer, 0);
+
+        // when
+        var failure = assertThrows(IllegalArgumentException.class, () -> EventCodec.decodeEvent(buffer.flip()));
+
+        // then
+        assertEquals("Unknown currency code 1", failure.getMessage());
+    }
+}
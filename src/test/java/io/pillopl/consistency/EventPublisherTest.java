@@ -0,0 +1,100 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EventPublisherTest {
+    EventStore eventStore = new EventStore();
+
+    @Test
+    void deliversOnlyRequestedEvents() throws InterruptedException {
+        // given
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a"), new DummyEvent("b")), 0);
+        var subscriber = new CollectingSubscriber();
+
+        // when
+        eventStore.publisher(EventFilter.all(), 0).subscribe(subscriber);
+        subscriber.request(1);
+
+        // then
+        assertEquals(new DummyEvent("a"), subscriber.next().data());
+        assertNull(subscriber.received.poll(100, TimeUnit.MILLISECONDS));
+
+        // when
+        subscriber.request(1);
+
+        // then
+        assertEquals(new DummyEvent("b"), subscriber.next().data());
+    }
+
+    @Test
+    void deliversEventsAppendedAfterSubscribing() throws InterruptedException {
+        // given
+        var subscriber = new CollectingSubscriber();
+        eventStore.publisher(EventFilter.category("Card"), 0).subscribe(subscriber);
+        subscriber.request(10);
+
+        // when
+        eventStore.appendToStream("BillingCycle:1:x", List.of(new DummyEvent("a")), 0);
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("b")), 0);
+
+        // then
+        var event = subscriber.next();
+        assertEquals(new DummyEvent("b"), event.data());
+        assertEquals(1, event.metadata().position());
+    }
+
+    @Test
+    void resumesFromGivenPosition() throws InterruptedException {
+        // given
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a"), new DummyEvent("b")), 0);
+        eventStore.appendToStream("Card:2", List.of(new DummyEvent("c")), 0);
+        var subscriber = new CollectingSubscriber();
+
+        // when
+        eventStore.publisher(EventFilter.all(), 2).subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        // then
+        assertEquals(new DummyEvent("c"), subscriber.next().data());
+    }
+
+    static class CollectingSubscriber implements Flow.Subscriber<EventEnvelope> {
+        final BlockingQueue<EventEnvelope> received = new LinkedBlockingQueue<>();
+        Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(EventEnvelope item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        void request(long n) {
+            subscription.request(n);
+        }
+
+        EventEnvelope next() throws InterruptedException {
+            return received.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+record DummyEvent(String value) {
+}
+
+record OtherDummyEvent(String value) {
+}
+
+class EventStoreTest {
+    EventStore eventStore = new EventStore();
+
+    @Test
+    void appendsToManyStreamsAtOnce() {
+        // given
+        var published = new ArrayList<Object>();
+        eventStore.subscribe(published::add);
+
+        // when
+        var result = eventStore.appendToStreams(List.of(
+            new StreamAppend("Card:1", List.of(new DummyEvent("a")), 0),
+            new StreamAppend("BillingCycle:1:x", List.of(new DummyEvent("b")), 0)
+        ));
+
+        // then
+        assertEquals(Result.Success, result);
+        assertEquals(List.of(new DummyEvent("a")), eventStore.readEvents(DummyEvent.class, "Card:1"));
+        assertEquals(List.of(new DummyEvent("b")), eventStore.readEvents(DummyEvent.class, "BillingCycle:1:x"));
+        assertEquals(2, published.size());
+    }
+
+    @Test
+    void doesNotAppendToAnyStreamWhenOneVersionConflicts() {
+        // given
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a")), 0);
+
+        // when
+        var result = eventStore.appendToStreams(List.of(
+            new StreamAppend("BillingCycle:1:x", List.of(new DummyEvent("b")), 0),
+            new StreamAppend("Card:1", List.of(new DummyEvent("c")), 0)
+        ));
+
+        // then
+        assertEquals(Result.Failure, result);
+        assertTrue(eventStore.readEvents(DummyEvent.class, "BillingCycle:1:x").isEmpty());
+        assertEquals(List.of(new DummyEvent("a")), eventStore.readEvents(DummyEvent.class, "Card:1"));
+    }
+
+    @Test
+    void versionIsNumberOfEventsInStream() {
+        // given
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a"), new DummyEvent("b")), 0);
+
+        // when
+        var result = eventStore.appendToStream("Card:1", List.of(new DummyEvent("c")), 2);
+
+        // then
+        assertEquals(Result.Success, result);
+        assertEquals(3, eventStore.readEvents(DummyEvent.class, "Card:1").size());
+    }
+
+    @Test
+    void deliversEventsOnlyToSubscribersOfTheirType() {
+        // given
+        var dummies = new ArrayList<DummyEvent>();
+        var others = new ArrayList<OtherDummyEvent>();
+        eventStore.subscribe(DummyEvent.class, dummies::add);
+        eventStore.subscribe(OtherDummyEvent.class, others::add);
+
+        // when
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a"), new OtherDummyEvent("b")), 0);
+
+        // then
+        assertEquals(List.of(new DummyEvent("a")), dummies);
+        assertEquals(List.of(new OtherDummyEvent("b")), others);
+    }
+
+    @Test
+    void deliversEventsOnlyFromSubscribedCategory() {
+        // given
+        var fromCards = new ArrayList<EventEnvelope>();
+        eventStore.subscribe(Object.class, "Card", fromCards::add);
+
+        // when
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a")), 0);
+        eventStore.appendToStream("CardholderNotes:1", List.of(new DummyEvent("b")), 0);
+        eventStore.appendToStream("BillingCycle:1:x", List.of(new DummyEvent("c")), 0);
+
+        // then
+        assertEquals(1, fromCards.size());
+        assertEquals("Card:1", fromCards.get(0).metadata().streamId());
+    }
+
+    @Test
+    void pagesThroughStreamsOfCategory() {
+        // given
+        for (int i = 0; i < 5; i++) {
+            eventStore.appendToStream("Card:" + i, List.of(new DummyEvent("a")), 0);
+            eventStore.appendToStream("BillingCycle:" + i + ":x", List.of(new DummyEvent("b")), 0);
+        }
+        eventStore.appendToStream("Card:0", List.of(new DummyEvent("c")), 1);
+
+        // when
+        var firstPage = eventStore.streamIds("Card", null, 3);
+        var secondPage = eventStore.streamIds("Card", firstPage.get(2), 3);
+
+        // then
+        assertEquals(List.of("Card:0", "Card:1", "Card:2"), firstPage);
+        assertEquals(List.of("Card:3", "Card:4"), secondPage);
+        assertEquals(5, eventStore.streamIds("BillingCycle", true).count());
+    }
+
+    @Test
+    void cardAndItsCyclesShareShard() {
+        var cardId = CardId.random();
+
+        assertEquals(
+            EventStore.shardOf(cardId.toString()),
+            EventStore.shardOf(BillingCycleId.fromNow(cardId).toString())
+        );
+    }
+
+    @Test
+    void offHeapStorageReadsBackWhatWasAppended() {
+        // given
+        var offHeapStore = new EventStore(new OffHeapEventStorage(512), Metrics.disabled());
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        card.openNextCycle();
+        var events = card.dequeuePendingEvents();
+
+        // when
+        for (int i = 0; i < events.size(); i++) {
+            offHeapStore.appendToStream(card.id().toString(), List.of(events.get(i)), i);
+        }
+
+        // then
+        var stored = offHeapStore.readEvents(VirtualCreditCardEvent.class, card.id().toString());
+        assertEquals(events, stored);
+        assertEquals(Money.of(100, "USD"), VirtualCreditCard.recreate(stored).getLimit().available());
+    }
+
+    @Test
+    void readsPagesAndTailsOfStream() {
+        var cardId = CardId.random();
+        var events = IntStream.range(0, 5)
+            .mapToObj(i -> new OwnershipEvent.AccessGranted(cardId, OwnerId.random(), Instant.now()))
+            .toList();
+
+        for (var storage : List.of(new InMemoryEventStorage(), new OffHeapEventStorage(512))) {
+            // given
+            var store = new EventStore(storage, Metrics.disabled());
+            for (int i = 0; i < events.size(); i++) {
+                store.appendToStream("Ownership:1", List.of(events.get(i)), i);
+            }
+
+            // expect
+            assertEquals(List.of(events.get(1), events.get(2)), data(store.readEvents("Ownership:1", 2, 2)));
+            assertEquals(List.of(events.get(4)), data(store.readEvents("Ownership:1", 5, 10)));
+            assertEquals(List.of(events.get(4), events.get(3)), data(store.readEventsBackward("Ownership:1", Integer.MAX_VALUE, 2)));
+            assertEquals(List.of(events.get(1), events.get(0)), data(store.readEventsBackward("Ownership:1", 2, 10)));
+            assertEquals(List.of(), store.readEvents("Ownership:2", 1, 10));
+        }
+    }
+
+    @Test
+    void replicatesLogWithGaps() {
+        var events = List.of(
+            JdbcEventStorageTest.accessGranted("Ownership:1", 1, 0),
+            JdbcEventStorageTest.accessGranted("Ownership:2", 1, 2),
+            JdbcEventStorageTest.accessGranted("Ownership:1", 2, 3),
+            JdbcEventStorageTest.accessGranted("Ownership:3", 1, 7)
+        );
+
+        for (var storage : List.of(new InMemoryEventStorage(), new OffHeapEventStorage(512))) {
+            // given
+            var standby = new EventStore(storage, Metrics.disabled());
+
+            // when
+            standby.replicate(events);
+
+            // then
+            assertEquals(8, standby.nextPosition());
+            assertEquals(events, standby.readAll(0, 10));
+            assertEquals(events.subList(1, 3), standby.readAll(1, 2));
+            assertEquals(events.subList(3, 4), standby.readAll(4, 10));
+            assertEquals(List.of(), standby.readAll(8, 10));
+        }
+    }
+
+    @Test
+    void offHeapStorageAppendsAllOrNothing() {
+        // given
+        var storage = new OffHeapEventStorage(512);
+        var fits = JdbcEventStorageTest.accessGranted("Ownership:1", 1, 0);
+        var tooLarge = JdbcEventStorageTest.accessGranted("Ownership:" + "2".repeat(1024), 1, 1);
+
+        // when
+        assertThrows(IllegalArgumentException.class, () -> storage.appendAll(Map.of(
+            "Ownership:1", List.of(fits),
+            tooLarge.metadata().streamId(), List.of(tooLarge)
+        )));
+
+        // then
+        assertEquals(0, storage.nextPosition());
+        assertEquals(0, storage.version("Ownership:1"));
+        assertEquals(List.of(), storage.readAll(0, 10));
+    }
+
+    @Test
+    void checksExpectedVersionModes() {
+        // expect
+        assertEquals(Result.Failure, eventStore.appendToStream("Card:1", List.of(new DummyEvent("a")), ExpectedVersion.streamExists()));
+        assertEquals(Result.Success, eventStore.appendToStream("Card:1", List.of(new DummyEvent("a")), ExpectedVersion.noStream()));
+        assertEquals(Result.Failure, eventStore.appendToStream("Card:1", List.of(new DummyEvent("b")), ExpectedVersion.noStream()));
+        assertEquals(Result.Success, eventStore.appendToStream("Card:1", List.of(new DummyEvent("b")), ExpectedVersion.streamExists()));
+        assertEquals(Result.Success, eventStore.appendToStream("Card:1", List.of(new DummyEvent("c")), ExpectedVersion.any()));
+        assertEquals(Result.Success, eventStore.appendToStream("Card:2", List.of(new DummyEvent("d")), ExpectedVersion.any()));
+        assertEquals(Result.Success, eventStore.appendToStream("Card:1", List.of(new DummyEvent("e")), ExpectedVersion.exactly(3)));
+        assertEquals(4, eventStore.readEvents(DummyEvent.class, "Card:1").size());
+        assertThrows(IllegalArgumentException.class, () -> ExpectedVersion.exactly(-2));
+    }
+
+    static List<Object> data(List<EventEnvelope> events) {
+        return events.stream().map(EventEnvelope::data).toList();
+    }
+}
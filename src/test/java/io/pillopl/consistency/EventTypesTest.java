@@ -0,0 +1,34 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventTypesTest {
+
+    @Test
+    void sealedEventTypesHaveStableIds() {
+        assertEquals(0, EventTypes.idOf(BillingCycleEvent.CycleOpened.class));
+        assertEquals(3, EventTypes.idOf(BillingCycleEvent.CycleClosed.class));
+        assertEquals(4, EventTypes.idOf(VirtualCreditCardEvent.CardCreated.class));
+        assertEquals(8, EventTypes.idOf(VirtualCreditCardEvent.CycleClosed.class));
+    }
+
+    @Test
+    void filtersBySupertype() {
+        var cardWithdrawn = EventTypes.idOf(BillingCycleEvent.CardWithdrawn.class);
+
+        assertTrue(EventTypes.isA(cardWithdrawn, BillingCycleEvent.class));
+        assertFalse(EventTypes.isA(cardWithdrawn, VirtualCreditCardEvent.class));
+    }
+
+    @Test
+    void registersOtherTypesOnFirstUse() {
+        var id = EventTypes.idOf(DummyEvent.class);
+
+        assertEquals(DummyEvent.class, EventTypes.typeOf(id));
+        assertTrue(EventTypes.isA(id, DummyEvent.class));
+    }
+}
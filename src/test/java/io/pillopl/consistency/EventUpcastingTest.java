@@ -0,0 +1,133 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EventUpcastingTest {
+    static final byte oldVersion = EventCodec.schemaVersion - 1;
+
+    EventUpcasters upcasters = new EventUpcasters();
+
+    // in the old layout AccessGranted had no grant time
+    @BeforeEach
+    void registerUpcaster() {
+        upcasters.register(OwnershipEvent.AccessGranted.class, oldVersion, (from, to) -> {
+            to.putLong(from.getLong()).putLong(from.getLong());
+            to.putLong(from.getLong()).putLong(from.getLong());
+            EventCodec.putVarLong(to, 0);
+            EventCodec.putVarLong(to, 0);
+        });
+    }
+
+    CardId cardId = CardId.random();
+    OwnerId ownerId = OwnerId.random();
+
+    @Test
+    void upcastsEventsOfOlderSchemaOnceWhenRead() {
+        // given
+        var encoded = oldAccessGranted(0);
+
+        var firstRead = encoded.duplicate();
+        var secondRead = encoded.duplicate();
+
+        // when
+        var first = EventCodec.decode(firstRead, upcasters);
+        var second = EventCodec.decode(secondRead, upcasters);
+
+        // then
+        assertEquals(new OwnershipEvent.AccessGranted(cardId, ownerId, Instant.EPOCH), first.data());
+        assertSame(first.data(), second.data());
+        assertFalse(EventCodec.isCurrent(encoded));
+        assertFalse(firstRead.hasRemaining());
+        assertFalse(secondRead.hasRemaining());
+    }
+
+    @Test
+    void olderEventsNeedTheStoragesUpcasters() {
+        // given
+        var encoded = oldAccessGranted(0);
+
+        // expect
+        assertThrows(IllegalArgumentException.class, () -> EventCodec.decode(encoded.duplicate()));
+        assertThrows(IllegalArgumentException.class, () -> EventCodec.decode(encoded.duplicate(), new EventUpcasters()));
+    }
+
+    @Test
+    void rejectsMetadataOlderThanVersionThree() {
+        // given
+        var encoded = oldAccessGranted(0);
+        encoded.put(0, (byte) 2);
+
+        // expect
+        assertThrows(IllegalArgumentException.class, () -> EventCodec.decode(encoded, upcasters));
+    }
+
+    @Test
+    void rewriterMigratesStoredEventsToCurrentSchema() throws SQLException {
+        // given
+        var connections = new ConnectionPool("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", 2);
+        var storage = new JdbcEventStorage(connections, 256, upcasters);
+        var eventStore = new EventStore(storage, Metrics.disabled());
+        insert(connections, oldAccessGranted(0));
+        eventStore.appendToStream(OwnershipDatabase.streamIdOf(cardId), List.of(
+            new OwnershipEvent.AccessRevoked(cardId, ownerId, Instant.now())
+        ), 1);
+
+        // when
+        var rewritten = new EventRewriter(storage, 1, Duration.ZERO, Metrics.disabled()).rewriteAll();
+
+        // then
+        assertEquals(1, rewritten);
+        assertEquals(0, new EventRewriter(storage).rewriteAll());
+        assertEquals(
+            new OwnershipEvent.AccessGranted(cardId, ownerId, Instant.EPOCH),
+            eventStore.readEvents(OwnershipEvent.class, OwnershipDatabase.streamIdOf(cardId)).getFirst()
+        );
+        connections.close();
+    }
+
+    ByteBuffer oldAccessGranted(long position) {
+        var buffer = ByteBuffer.allocate(256);
+        EventCodec.encodeMetadata(new EventMetadata(
+            OwnershipDatabase.streamIdOf(cardId),
+            EventTypes.idOf(OwnershipEvent.AccessGranted.class),
+            UUID.randomUUID(),
+            1,
+            position,
+            Instant.now()
+        ), buffer);
+        buffer.put(oldVersion);
+        EventCodec.putVarLong(buffer, EventTypes.idOf(OwnershipEvent.AccessGranted.class));
+        buffer.putLong(cardId.contractId().getMostSignificantBits()).putLong(cardId.contractId().getLeastSignificantBits());
+        buffer.putLong(ownerId.id().getMostSignificantBits()).putLong(ownerId.id().getLeastSignificantBits());
+        return buffer.flip();
+    }
+
+    void insert(ConnectionPool connections, ByteBuffer encoded) throws SQLException {
+        var connection = connections.acquire();
+        try (var insert = connection.prepareStatement(
+            "INSERT INTO events (position, stream_id, version, event_type, payload) VALUES (0, ?, 1, ?, ?)"
+        )) {
+            insert.setString(1, OwnershipDatabase.streamIdOf(cardId));
+            insert.setInt(2, EventTypes.idOf(OwnershipEvent.AccessGranted.class));
+            var payload = new byte[encoded.remaining()];
+            encoded.duplicate().get(payload);
+            insert.setBytes(3, payload);
+            insert.executeUpdate();
+        } finally {
+            connections.release(connection);
+        }
+    }
+}
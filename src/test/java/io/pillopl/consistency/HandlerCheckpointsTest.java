@@ -0,0 +1,101 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.money.Monetary;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HandlerCheckpointsTest {
+    DatabaseCollection<StreamCheckpoint> store = Database.collection(StreamCheckpoint.class);
+    HandlerCheckpoints checkpoints = new HandlerCheckpoints("handler", store, 3);
+
+    @Test
+    void tracksEventsProcessedOutOfOrder() {
+        // when
+        checkpoints.processed(event("Card:1", 2));
+
+        // then
+        assertTrue(checkpoints.isProcessed(event("Card:1", 2)));
+        assertFalse(checkpoints.isProcessed(event("Card:1", 1)));
+
+        // when
+        checkpoints.processed(event("Card:1", 1));
+
+        // then
+        assertTrue(checkpoints.isProcessed(event("Card:1", 1)));
+        assertFalse(checkpoints.isProcessed(event("Card:2", 1)));
+    }
+
+    @Test
+    void commitsInBatches() {
+        // when
+        checkpoints.processed(event("Card:1", 1));
+        checkpoints.processed(event("Card:2", 1));
+
+        // then
+        assertTrue(store.find("handler@Card:1").isEmpty());
+
+        // when
+        checkpoints.processed(event("Card:1", 2));
+
+        // then
+        var restarted = new HandlerCheckpoints("handler", store, 3);
+        assertTrue(restarted.isProcessed(event("Card:1", 2)));
+        assertTrue(restarted.isProcessed(event("Card:2", 1)));
+    }
+
+    @Test
+    void handlerSkipsRedeliveredEvents() {
+        // given
+        var metrics = new MetricsRegistry();
+        var eventStore = new EventStore();
+        var creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+        var billingCycleDatabase = new BillingCycleDatabase(eventStore);
+        new BillingCycleEventHandler(creditCardDatabase, billingCycleDatabase, metrics).subscribeTo(eventStore);
+        var delivered = new ArrayList<EventEnvelope>();
+        eventStore.subscribe(VirtualCreditCardEvent.CycleOpened.class, null, delivered::add);
+
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        new BillingCycleService(creditCardDatabase, billingCycleDatabase).openNextCycle(card.id());
+
+        // when
+        var handler = new BillingCycleEventHandler(creditCardDatabase, billingCycleDatabase, metrics);
+        handler.handleOnce(delivered.getFirst());
+        handler.handleOnce(delivered.getFirst());
+
+        // then
+        assertEquals(1, metrics.counter("billingCycleEventHandler.duplicates").count());
+    }
+
+    @Test
+    void durableCheckpointsSurviveRestart(@TempDir Path directory) {
+        // given
+        var durable = HandlerCheckpoints.durable("handler", directory, 3, Metrics.disabled());
+        durable.processed(event("Card:1", 1));
+        durable.processed(event("Card:1", 2));
+        durable.close();
+
+        // when
+        var restarted = HandlerCheckpoints.durable("handler", directory, 3, Metrics.disabled());
+
+        // then
+        assertTrue(restarted.isProcessed(event("Card:1", 2)));
+        assertFalse(restarted.isProcessed(event("Card:1", 3)));
+        restarted.close();
+    }
+
+    static EventMetadata event(String streamId, int version) {
+        return new EventMetadata(streamId, 0, UUID.randomUUID(), version, 0, Instant.now());
+    }
+}
@@ -0,0 +1,138 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyIndexTest {
+
+    @Test
+    void duplicateGetsOriginalResultWithoutRunning() {
+        // given
+        var index = new IdempotencyIndex();
+        var runs = new AtomicInteger();
+        var key = IdempotencyKey.random();
+
+        // when
+        index.execute(key, "repay 10 USD", () -> {
+            runs.incrementAndGet();
+            return Outcome.decided(Result.Failure);
+        });
+        var duplicate = index.execute(key, "repay 10 USD", () -> {
+            runs.incrementAndGet();
+            return Outcome.decided(Result.Success);
+        });
+
+        // then
+        assertEquals(Result.Failure, duplicate);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void retryableFailureRunsAgainOnRetry() {
+        // given
+        var index = new IdempotencyIndex();
+        var runs = new AtomicInteger();
+        var key = IdempotencyKey.random();
+        index.execute(key, "repay 10 USD", () -> {
+            runs.incrementAndGet();
+            return Outcome.retryable(Result.Failure);
+        });
+
+        // when
+        var retried = index.execute(key, "repay 10 USD", () -> {
+            runs.incrementAndGet();
+            return Outcome.retryable(Result.Success);
+        });
+        var duplicate = index.execute(key, "repay 10 USD", () -> {
+            runs.incrementAndGet();
+            return Outcome.retryable(Result.Failure);
+        });
+
+        // then
+        assertEquals(Result.Success, retried);
+        assertEquals(Result.Success, duplicate);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    void keyReusedWithOtherArgumentsFails() {
+        // given
+        var index = new IdempotencyIndex();
+        var key = IdempotencyKey.random();
+        index.execute(key, "repay 10 USD", () -> Outcome.decided(Result.Success));
+
+        // expect
+        assertThrows(IllegalArgumentException.class,
+            () -> index.execute(key, "repay 20 USD", () -> Outcome.decided(Result.Success)));
+    }
+
+    @Test
+    void retryRacingOriginalGetsItsException() throws Exception {
+        // given
+        var index = new IdempotencyIndex();
+        var key = IdempotencyKey.random();
+        var started = new CountDownLatch(1);
+        var fail = new CountDownLatch(1);
+        var original = new Thread(() -> assertThrows(IllegalStateException.class,
+            () -> index.execute(key, "repay 10 USD", () -> {
+                started.countDown();
+                await(fail);
+                throw new IllegalStateException("storage down");
+            })));
+        original.start();
+        started.await();
+        var retried = new AtomicReference<Throwable>();
+        var retry = new Thread(() -> {
+            try {
+                index.execute(key, "repay 10 USD", () -> Outcome.decided(Result.Success));
+            } catch (Throwable e) {
+                retried.set(e);
+            }
+        });
+        retry.start();
+        while (retry.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+
+        // when
+        fail.countDown();
+        original.join();
+        retry.join();
+
+        // then
+        assertInstanceOf(IllegalStateException.class, retried.get());
+        assertEquals("storage down", retried.get().getMessage());
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void staysBoundedUnderLoad() {
+        // given
+        var index = new IdempotencyIndex(Clock.systemUTC(), Duration.ofHours(1), 100);
+
+        // when
+        for (int i = 0; i < 10_000; i++) {
+            index.execute(IdempotencyKey.random(), "repay 10 USD", () -> Outcome.decided(Result.Success));
+        }
+
+        // then
+        assertTrue(index.size() <= 200);
+    }
+}
@@ -0,0 +1,78 @@
+package io.pillopl.consistency;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+// EventStore on embedded H2: appends of one and of ten events to fresh
+// streams, and reads of a ten event stream. Run main().
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class JdbcEventStorageBenchmark {
+    ConnectionPool connections;
+    EventStore eventStore;
+    AtomicLong streams = new AtomicLong();
+    CardId cardId = CardId.random();
+    List<OwnershipEvent> tenEvents = IntStream.range(0, 10)
+        .mapToObj(i -> (OwnershipEvent) new OwnershipEvent.AccessGranted(cardId, OwnerId.random(), Instant.now()))
+        .toList();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        connections = new ConnectionPool("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", 8);
+        eventStore = new EventStore(new JdbcEventStorage(connections), Metrics.disabled());
+        eventStore.appendToStream("Ownership:read", tenEvents, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connections.close();
+    }
+
+    @Benchmark
+    public Result appendOneEvent() {
+        return eventStore.appendToStream("Ownership:" + streams.incrementAndGet(), tenEvents.subList(0, 1), 0);
+    }
+
+    @Benchmark
+    public Result appendTenEvents() {
+        return eventStore.appendToStream("Ownership:" + streams.incrementAndGet(), tenEvents, 0);
+    }
+
+    @Benchmark
+    public List<OwnershipEvent> readTenEvents() {
+        return eventStore.readEvents(OwnershipEvent.class, "Ownership:read");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(JdbcEventStorageBenchmark.class.getSimpleName())
+            .build()
+        ).run();
+    }
+}
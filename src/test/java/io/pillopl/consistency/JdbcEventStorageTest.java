@@ -0,0 +1,144 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JdbcEventStorageTest {
+    ConnectionPool connections = new ConnectionPool("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", 4);
+    JdbcEventStorage storage = new JdbcEventStorage(connections, 2);
+    EventStore eventStore = new EventStore(storage, Metrics.disabled());
+
+    @AfterEach
+    void afterEach() {
+        connections.close();
+    }
+
+    @Test
+    void readsBackWhatWasAppended() {
+        // given
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        card.openNextCycle();
+        var events = card.dequeuePendingEvents();
+
+        // when
+        var result = eventStore.appendToStream(card.id().toString(), events, 0);
+
+        // then
+        assertEquals(Result.Success, result);
+        assertEquals(events, eventStore.readEvents(VirtualCreditCardEvent.class, card.id().toString()));
+        assertEquals(events.size(), eventStore.readEvents(card.id().toString(), 1, 10).size());
+        assertEquals(Result.Failure, eventStore.appendToStream(card.id().toString(), events, 0));
+        assertEquals(events.size(), storage.readAll(0, 100).size());
+    }
+
+    @Test
+    void uniqueStreamVersionRejectsWholeAppend() {
+        // given
+        storage.append("Ownership:1", List.of(accessGranted("Ownership:1", 1, 0)));
+
+        // when
+        assertThrows(StreamVersionConflict.class, () -> storage.appendAll(Map.of(
+            "Ownership:2", List.of(accessGranted("Ownership:2", 1, 1)),
+            "Ownership:1", List.of(accessGranted("Ownership:1", 1, 2))
+        )));
+
+        // then
+        assertEquals(0, storage.version("Ownership:2"));
+        assertEquals(1, storage.nextPosition());
+    }
+
+    @Test
+    void appendThatCantBeEncodedLeavesConnectionClean() {
+        // given
+        var connection = new ConnectionPool("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", 1);
+        var storage = new JdbcEventStorage(connection, 2);
+        var cardId = CardId.random();
+        var cycleId = BillingCycleId.fromNow(cardId);
+        var subCent = new BillingCycleEvent.CardWithdrawn(cycleId, cardId, Money.of(0.001, "USD"), Instant.now());
+
+        // when
+        assertThrows(ArithmeticException.class, () -> storage.appendAll(Map.of(
+            "Ownership:1", List.of(accessGranted("Ownership:1", 1, 0)),
+            "BillingCycle:1", List.of(EventEnvelope.from("BillingCycle:1", subCent, 1, 1))
+        )));
+        storage.append("Ownership:2", List.of(accessGranted("Ownership:2", 1, 0)));
+
+        // then
+        assertEquals(0, storage.version("Ownership:1"));
+        assertEquals(1, storage.version("Ownership:2"));
+        assertEquals(1, storage.nextPosition());
+        connection.close();
+    }
+
+    @Test
+    void appendsOfDifferentStreamsGoConcurrentlyAndLogStaysInOrder() throws InterruptedException {
+        // given
+        var threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            var streamId = "Ownership:" + t;
+            threads.add(Thread.ofVirtual().start(() -> {
+                for (int version = 0; version < 20; version++) {
+                    var event = new OwnershipEvent.AccessGranted(CardId.random(), OwnerId.random(), Instant.now());
+                    eventStore.appendToStream(streamId, List.of(event), version);
+                }
+            }));
+        }
+
+        // when
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        // then
+        var log = eventStore.readAll(0, 1000);
+        assertEquals(160, log.size());
+        for (int position = 0; position < log.size(); position++) {
+            assertEquals(position, log.get(position).metadata().position());
+        }
+        assertEquals(160, eventStore.nextPosition());
+    }
+
+    @Test
+    void reopenedStoreFindsStreamsWrittenBefore() {
+        // given
+        var creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+        var billingCycleService = new BillingCycleService(creditCardDatabase, new BillingCycleDatabase(eventStore));
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        billingCycleService.openNextCycle(card.id());
+        var cycleId = billingCycleService.getCurrentlyOpenedBillingCycleId(card.id()).orElseThrow();
+
+        // when
+        var reopened = new EventStore(new JdbcEventStorage(connections, 2), Metrics.disabled());
+        var reopenedService = new BillingCycleService(
+            new VirtualCreditCardDatabase(reopened),
+            new BillingCycleDatabase(reopened)
+        );
+        var scheduler = new BillingCycleScheduler(reopenedService, Clock.systemUTC(), 1, 10);
+        scheduler.rebuildFrom(reopened);
+
+        // then
+        assertEquals(List.of(cycleId.toString()), reopened.streamIds("BillingCycle", null, 10));
+        assertEquals(1, scheduler.pending());
+        scheduler.stop();
+    }
+
+    static EventEnvelope accessGranted(String streamId, int version, long position) {
+        var event = new OwnershipEvent.AccessGranted(CardId.random(), OwnerId.random(), Instant.now());
+        return EventEnvelope.from(streamId, event, version, position);
+    }
+}
@@ -0,0 +1,172 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.money.Monetary;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogShippingTest {
+    @TempDir
+    Path directory;
+
+    EventStore primary = new EventStore();
+    AtomicLong lastPosition = new AtomicLong(-1);
+    VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(primary);
+    BillingCycleService billingCycleService = new BillingCycleService(creditCardDatabase, new BillingCycleDatabase(primary));
+
+    EventStore standby = new EventStore();
+    BillingCycleIndex standbyIndex = new BillingCycleIndex();
+
+    @Test
+    void standbyFollowsPrimaryAndTakesOverWhenPromoted() throws InterruptedException {
+        // given
+        primary.subscribe(Object.class, null, event -> lastPosition.accumulateAndGet(event.metadata().position(), Math::max));
+        standbyIndex.subscribeTo(standby);
+        var shipper = new LogShipper(directory, 256, Metrics.disabled());
+        var replica = new StandbyReplica(directory, standby);
+        shipper.start(primary);
+
+        // when
+        var cycleId = openCycleOfNewCard();
+        awaitShipped(shipper);
+        replica.poll();
+
+        // then
+        assertEquals(lastPosition.get(), replica.appliedPosition());
+        assertEquals(
+            primary.readEvents(VirtualCreditCardEvent.class, cycleId.cardId().toString()),
+            standby.readEvents(VirtualCreditCardEvent.class, cycleId.cardId().toString())
+        );
+        assertEquals(List.of(cycleId), standbyIndex.endingOn(cycleId.to()).toList());
+
+        // when
+        var secondCycleId = openCycleOfNewCard();
+        awaitShipped(shipper);
+        shipper.stop();
+        var promoted = replica.promote();
+
+        // then
+        assertTrue(standbyIndex.endingOn(secondCycleId.to()).toList().contains(secondCycleId));
+        var streamId = OwnershipDatabase.streamIdOf(secondCycleId.cardId());
+        var granted = new OwnershipEvent.AccessGranted(secondCycleId.cardId(), OwnerId.random(), Instant.now());
+        assertEquals(Result.Success, promoted.appendToStream(streamId, List.of(granted), ExpectedVersion.noStream()));
+        assertEquals(lastPosition.get() + 1, promoted.readEvents(streamId, 1, 1).getFirst().metadata().position());
+    }
+
+    @Test
+    void shipperResumesAfterLastShippedEvent() throws InterruptedException {
+        // given
+        var shipper = new LogShipper(directory);
+        primary.subscribe(Object.class, null, event -> lastPosition.accumulateAndGet(event.metadata().position(), Math::max));
+        shipper.start(primary);
+        openCycleOfNewCard();
+        awaitShipped(shipper);
+        shipper.stop();
+
+        // when
+        openCycleOfNewCard();
+        var restarted = new LogShipper(directory);
+        restarted.start(primary);
+        awaitShipped(restarted);
+        var replica = new StandbyReplica(directory, standby);
+
+        // then
+        assertTrue(replica.poll() > 0);
+        assertEquals(lastPosition.get(), replica.appliedPosition());
+    }
+
+    @Test
+    void shipperRestartsOverSegmentWithOnlyTornEntry() throws Exception {
+        // given
+        var shipper = new LogShipper(directory);
+        primary.subscribe(Object.class, null, event -> lastPosition.accumulateAndGet(event.metadata().position(), Math::max));
+        shipper.start(primary);
+        openCycleOfNewCard();
+        awaitShipped(shipper);
+        shipper.stop();
+        // crashed while writing the first entry of a new segment
+        Files.write(LogSegments.file(directory, shipper.shippedPosition() + 1), new byte[]{0, 0, 1, 0, 42});
+
+        // when
+        openCycleOfNewCard();
+        var restarted = new LogShipper(directory);
+        restarted.start(primary);
+        awaitShipped(restarted);
+        var replica = new StandbyReplica(directory, standby);
+
+        // then
+        assertTrue(restarted.failure().isEmpty());
+        assertTrue(replica.poll() > 0);
+        assertEquals(lastPosition.get(), replica.appliedPosition());
+        restarted.stop();
+    }
+
+    @Test
+    void standbyRecoversFromFailedApply() throws InterruptedException {
+        // given
+        primary.subscribe(Object.class, null, event -> lastPosition.accumulateAndGet(event.metadata().position(), Math::max));
+        var failOnce = new AtomicBoolean(true);
+        var failing = new EventStore(new InMemoryEventStorage() {
+            @Override
+            public void appendAll(Map<String, List<EventEnvelope>> events) {
+                if (failOnce.getAndSet(false)) {
+                    throw new IllegalStateException("disk full");
+                }
+                super.appendAll(events);
+            }
+        }, Metrics.disabled());
+        var metrics = new MetricsRegistry();
+        var shipper = new LogShipper(directory);
+        var replica = new StandbyReplica(directory, failing, metrics);
+        shipper.start(primary);
+        var cycleId = openCycleOfNewCard();
+        awaitShipped(shipper);
+
+        // when
+        assertEquals(0, replica.poll());
+
+        // then
+        assertTrue(replica.failure().isPresent());
+        assertEquals(1, metrics.counter("standby.failures").count());
+        assertEquals(-1, replica.appliedPosition());
+
+        // when
+        replica.poll();
+
+        // then
+        assertTrue(replica.failure().isEmpty());
+        assertEquals(lastPosition.get(), replica.appliedPosition());
+        assertEquals(
+            primary.readEvents(VirtualCreditCardEvent.class, cycleId.cardId().toString()),
+            failing.readEvents(VirtualCreditCardEvent.class, cycleId.cardId().toString())
+        );
+        shipper.stop();
+    }
+
+    BillingCycleId openCycleOfNewCard() {
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        billingCycleService.openNextCycle(card.id());
+        return billingCycleService.getCurrentlyOpenedBillingCycleId(card.id()).orElseThrow();
+    }
+
+    void awaitShipped(LogShipper shipper) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (shipper.shippedPosition() < lastPosition.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(lastPosition.get(), shipper.shippedPosition());
+    }
+}
@@ -0,0 +1,102 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+
+    @Test
+    void histogramKeepsPercentilesWithinTwoPercent() {
+        // given
+        var histogram = new LogLinearHistogram();
+
+        // when
+        for (int i = 1; i <= 100_000; i++) {
+            histogram.record(i);
+        }
+
+        // then
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000, histogram.max());
+        assertTrue(Math.abs(histogram.valueAtPercentile(50) - 50_000) < 1_000);
+        assertTrue(Math.abs(histogram.valueAtPercentile(99) - 99_000) < 2_000);
+    }
+
+    @Test
+    void eventStoreRecordsAppendsConflictsAndReads() {
+        // given
+        var metrics = new MetricsRegistry();
+        var eventStore = new EventStore(metrics);
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("a"), new DummyEvent("b")), 0);
+
+        // when
+        eventStore.appendToStream("Card:1", List.of(new DummyEvent("c")), 0);
+        eventStore.readEvents(DummyEvent.class, "Card:1");
+
+        // then
+        assertEquals(1, metrics.counter("eventStore.append.conflicts").count());
+        assertEquals(1, metrics.histogram("eventStore.append.events").count());
+        assertEquals(2, metrics.histogram("eventStore.append.events").max());
+        assertEquals(2, metrics.histogram("eventStore.read.events").max());
+    }
+
+    @Test
+    void serviceRecordsOutcomes() {
+        // given
+        var metrics = new MetricsRegistry();
+        var ownershipService = new OwnershipService(new OwnershipDatabase(new EventStore(metrics)), metrics);
+        var cardId = CardId.random();
+
+        // when
+        ownershipService.addAccess(cardId, OwnerId.random());
+        ownershipService.addAccess(cardId, OwnerId.random());
+        ownershipService.addAccess(cardId, OwnerId.random());
+
+        // then
+        assertEquals(2, metrics.counter("ownershipService.addAccess.success").count());
+        assertEquals(1, metrics.counter("ownershipService.addAccess.failure").count());
+    }
+
+    @Test
+    void reportsMostContendedStreams() {
+        // given
+        var metrics = new MetricsRegistry();
+        var eventStore = new EventStore(metrics);
+        eventStore.appendToStream("Card:hot", List.of(new DummyEvent("a")), 0);
+        eventStore.appendToStream("Card:warm", List.of(new DummyEvent("a")), 0);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            eventStore.appendToStream("Card:hot", List.of(new DummyEvent("b")), 0);
+        }
+        eventStore.appendToStream("Card:warm", List.of(new DummyEvent("b")), 0);
+
+        // then
+        var top = metrics.hotKeys("eventStore.streams").top(1);
+        assertEquals(1, top.size());
+        assertEquals("Card:hot", top.get(0).key());
+        assertEquals(10, top.get(0).conflicts());
+        assertEquals(11, top.get(0).attempts());
+    }
+
+    @Test
+    void separatesKeysWithSameHashCode() {
+        // given
+        var hotKeys = new ContentionSketch();
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            hotKeys.attempted("Aa");
+        }
+        hotKeys.attempted("BB");
+        hotKeys.conflicted("BB");
+
+        // then
+        assertEquals(1, hotKeys.top(1).get(0).attempts());
+    }
+}
@@ -0,0 +1,115 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static io.pillopl.consistency.BillingCycleEvent.CardWithdrawn;
+
+// Heap kept by each storage for the same withdrawals, and the cost of
+// filling it. Run main(): it prints retained heap bytes per event first,
+// then the JMH run with the GC profiler shows allocation and collections.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class OffHeapEventStorageBenchmark {
+    @Param({"1000000"})
+    int events;
+
+    List<EventEnvelope> withdrawals;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        withdrawals = withdrawals(events);
+    }
+
+    @Benchmark
+    public EventStorage fillInMemory() {
+        return fill(new InMemoryEventStorage(), withdrawals);
+    }
+
+    @Benchmark
+    public EventStorage fillOffHeap() {
+        return fill(new OffHeapEventStorage(), withdrawals);
+    }
+
+    static List<EventEnvelope> withdrawals(int count) {
+        var cards = 10_000;
+        var cardIds = new CardId[cards];
+        for (int i = 0; i < cards; i++) {
+            cardIds[i] = CardId.random();
+        }
+        var versions = new int[cards];
+        var envelopes = new EventEnvelope[count];
+        for (int i = 0; i < count; i++) {
+            var cardId = cardIds[i % cards];
+            var event = new CardWithdrawn(BillingCycleId.fromNow(cardId), cardId, Money.of(12.34, "USD"), Instant.now());
+            envelopes[i] = EventEnvelope.from(cardId.toString(), event, ++versions[i % cards], i);
+        }
+        return List.of(envelopes);
+    }
+
+    static EventStorage fill(EventStorage storage, List<EventEnvelope> withdrawals) {
+        for (var withdrawal : withdrawals) {
+            storage.appendAll(Map.of(withdrawal.metadata().streamId(), List.of(withdrawal)));
+        }
+        return storage;
+    }
+
+    // Events are built once and handed to the storage, so whatever the
+    // storage doesn't copy off-heap stays reachable only through it.
+    static long retainedHeap(Supplier<EventStorage> storage, int count) {
+        var before = usedHeap();
+        var withdrawals = withdrawals(count);
+        var filled = fill(storage.get(), withdrawals);
+        withdrawals = null;
+        var after = usedHeap();
+        return filled.nextPosition() > 0 ? after - before : 0;
+    }
+
+    static long usedHeap() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        var count = 1_000_000;
+        System.out.printf(
+            "retained heap per event: in-memory %d bytes, off-heap %d bytes%n",
+            retainedHeap(InMemoryEventStorage::new, count) / count,
+            retainedHeap(OffHeapEventStorage::new, count) / count
+        );
+        new Runner(new OptionsBuilder()
+            .include(OffHeapEventStorageBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()
+        ).run();
+    }
+}
@@ -0,0 +1,104 @@
+package io.pillopl.consistency;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+
+import static io.pillopl.consistency.OwnershipEvent.AccessGranted;
+import static io.pillopl.consistency.OwnershipEvent.AccessRevoked;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OwnershipTest {
+    EventStore eventStore = new EventStore();
+
+    static OwnerId OSKAR = OwnerId.random();
+    static OwnerId KUBA = OwnerId.random();
+
+    @Test
+    void keepsUpToTwoOwners() {
+        // when
+        var ownership = Ownership.empty().addAccess(OSKAR).addAccess(KUBA).revoke(OSKAR);
+
+        // then
+        assertFalse(ownership.hasAccess(OSKAR));
+        assertTrue(ownership.hasAccess(KUBA));
+        assertEquals(1, ownership.size());
+        assertEquals(3, ownership.version());
+    }
+
+    @Test
+    void nearCacheSeesLatestSave() {
+        // given
+        var database = new OwnershipDatabase(eventStore, new OwnershipNearCache(16));
+        var cardId = CardId.random();
+        database.save(cardId, new AccessGranted(cardId, OSKAR, Instant.now()), 0);
+        assertTrue(database.hasAccess(cardId, OSKAR));
+
+        // when
+        database.save(cardId, new AccessRevoked(cardId, OSKAR, Instant.now()), 1);
+
+        // then
+        assertFalse(database.hasAccess(cardId, OSKAR));
+    }
+
+    @Test
+    void instancesOnSameStoreSeeEachOthersChanges() {
+        // given
+        var first = new OwnershipService(new OwnershipDatabase(eventStore));
+        var secondDatabase = new OwnershipDatabase(eventStore, new OwnershipNearCache(16));
+        var second = new OwnershipService(secondDatabase);
+        var cardId = CardId.random();
+        first.addAccess(cardId, OSKAR);
+        assertTrue(secondDatabase.hasAccess(cardId, OSKAR));
+
+        // when
+        first.revokeAccess(cardId, OSKAR);
+
+        // then
+        assertFalse(secondDatabase.hasAccess(cardId, OSKAR));
+        assertEquals(Result.Success, second.addAccess(cardId, KUBA));
+    }
+
+    @Test
+    void standbyProjectionFollowsReplicatedChanges() {
+        // given
+        var standby = new EventStore();
+        var standbyDatabase = new OwnershipDatabase(standby);
+        var ownershipService = new OwnershipService(new OwnershipDatabase(eventStore));
+        var cardId = CardId.random();
+        ownershipService.addAccess(cardId, OSKAR);
+        standby.replicate(eventStore.readAll(0, 10));
+        assertTrue(standbyDatabase.hasAccess(cardId, OSKAR));
+
+        // when
+        ownershipService.revokeAccess(cardId, OSKAR);
+        standby.replicate(eventStore.readAll(standby.nextPosition(), 10));
+
+        // then
+        assertFalse(standbyDatabase.hasAccess(cardId, OSKAR));
+    }
+
+    @Test
+    void ownershipChangesAreEvents() {
+        // given
+        var changes = new ArrayList<OwnershipEvent>();
+        eventStore.subscribe(OwnershipEvent.class, changes::add);
+        var ownershipService = new OwnershipService(new OwnershipDatabase(eventStore));
+        var cardId = CardId.random();
+
+        // when
+        ownershipService.addAccess(cardId, OSKAR);
+        ownershipService.addAccess(cardId, KUBA);
+        ownershipService.revokeAccess(cardId, OSKAR);
+
+        // then
+        assertEquals(3, changes.size());
+        var restarted = new OwnershipDatabase(eventStore).find(cardId);
+        assertEquals(3, restarted.version());
+        assertTrue(restarted.hasAccess(KUBA));
+        assertFalse(restarted.hasAccess(OSKAR));
+    }
+}
@@ -0,0 +1,131 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelRebuildTest {
+    EventStore eventStore = new EventStore();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Map<String, List<Integer>> replayed = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void afterEach() {
+        pool.shutdown();
+    }
+
+    @Test
+    void replaysEveryStreamInOrder() {
+        // given
+        appendEvents(50, 20);
+
+        // when
+        var count = rebuild(this::record).run();
+
+        // then
+        assertEquals(1_000, count);
+        assertEquals(50, replayed.size());
+        replayed.values().forEach(versions ->
+            assertEquals(IntStream.rangeClosed(1, 20).boxed().toList(), versions)
+        );
+    }
+
+    @Test
+    void resumesFromLastCompletedPage() {
+        // given
+        appendEvents(10, 10);
+        var failing = rebuild(event -> {
+            if (event.metadata().position() == 70) {
+                throw new IllegalStateException("crashed");
+            }
+            record(event);
+        });
+        assertThrows(RuntimeException.class, failing::run);
+
+        // when
+        var resumed = rebuild(this::record);
+        resumed.run(failing.position());
+
+        // then
+        assertEquals(64, failing.position());
+        assertEquals(100, resumed.progress().endPosition());
+        assertEquals(36, resumed.progress().replayed());
+        replayed.values().forEach(versions ->
+            assertTrue(versions.containsAll(IntStream.rangeClosed(1, 10).boxed().toList()))
+        );
+    }
+
+    @Test
+    void billingCycleHandlerCatchesUpAfterCrash() {
+        // given
+        var creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+        var billingCycleDatabase = new BillingCycleDatabase(eventStore);
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        card.openNextCycle();
+        creditCardDatabase.save(card, 0);
+        var cycleId = card.getCurrentBillingCycle().id();
+
+        // when
+        var progress = new BillingCycleEventHandler(creditCardDatabase, billingCycleDatabase).rebuildFrom(eventStore);
+
+        // then
+        assertEquals(progress.endPosition(), progress.position());
+        assertEquals(cycleId, billingCycleDatabase.find(cycleId).id());
+    }
+
+    @Test
+    void billingCycleHandlerRebuildResumesFromStoredPosition() {
+        // given
+        var creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+        var billingCycleDatabase = new BillingCycleDatabase(eventStore);
+        var checkpoints = new HandlerCheckpoints("handler", Database.collection(StreamCheckpoint.class), 100);
+        var handler = new BillingCycleEventHandler(creditCardDatabase, billingCycleDatabase, Metrics.disabled(), checkpoints);
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        card.openNextCycle();
+        creditCardDatabase.save(card, 0);
+        var first = handler.rebuildFrom(eventStore);
+        assertEquals(first.endPosition(), checkpoints.rebuiltUpTo());
+
+        // when
+        appendEvents(2, 3);
+        var second = handler.rebuildFrom(eventStore);
+
+        // then only what came after the first rebuild, the cycle it opened too
+        assertEquals(second.endPosition() - first.endPosition(), second.replayed());
+        assertEquals(7, second.replayed());
+        assertEquals(second.endPosition(), checkpoints.rebuiltUpTo());
+    }
+
+    ParallelRebuild rebuild(Consumer<EventEnvelope> handler) {
+        return new ParallelRebuild(eventStore, handler, pool, 8, 32, Metrics.disabled());
+    }
+
+    void record(EventEnvelope event) {
+        replayed.computeIfAbsent(event.metadata().streamId(), id -> new ArrayList<>())
+            .add(event.metadata().version());
+    }
+
+    // events of all streams interleaved in the global log
+    void appendEvents(int streams, int eventsPerStream) {
+        for (int version = 0; version < eventsPerStream; version++) {
+            for (int stream = 0; stream < streams; stream++) {
+                eventStore.appendToStream("Card:" + stream, List.of(new DummyEvent("e" + version)), version);
+            }
+        }
+    }
+}
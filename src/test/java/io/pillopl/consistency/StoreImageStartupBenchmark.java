@@ -0,0 +1,86 @@
+package io.pillopl.consistency;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+// Time from nothing to serving the first read: mapping a store image
+// against replaying the same log into a fresh in-memory store. Run main().
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StoreImageStartupBenchmark {
+    @Param({"100000"})
+    int streams;
+
+    EventStore source;
+    Path image;
+    String hotStream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = new EventStore();
+        for (int i = 0; i < streams; i++) {
+            var cardId = CardId.random();
+            var events = IntStream.range(0, 5)
+                .mapToObj(e -> (Object) new OwnershipEvent.AccessGranted(cardId, OwnerId.random(), Instant.now()))
+                .toList();
+            source.appendToStream(OwnershipDatabase.streamIdOf(cardId), events, 0);
+            hotStream = OwnershipDatabase.streamIdOf(cardId);
+        }
+        image = Files.createTempFile("store", ".img");
+        StoreImage.write(source, image);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public List<EventEnvelope> startFromImage() {
+        var eventStore = new EventStore(ImageEventStorage.open(image), Metrics.disabled());
+        return eventStore.readEvents(hotStream, 1, 10);
+    }
+
+    @Benchmark
+    public List<EventEnvelope> startByReplaying() {
+        var eventStore = new EventStore();
+        var end = source.nextPosition();
+        for (var position = 0L; position < end; position += 4096) {
+            eventStore.replicate(source.readAll(position, 4096));
+        }
+        return eventStore.readEvents(hotStream, 1, 10);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(StoreImageStartupBenchmark.class.getSimpleName())
+            .build()
+        ).run();
+    }
+}
@@ -0,0 +1,171 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.money.Monetary;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StoreImageTest {
+    @TempDir
+    Path directory;
+
+    EventStore eventStore = new EventStore();
+    VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
+    BillingCycleService billingCycleService = new BillingCycleService(creditCardDatabase, new BillingCycleDatabase(eventStore));
+
+    @Test
+    void startsFromImageWithStreamsAndIndexes() {
+        // given
+        var cycleIds = List.of(openCycleOfNewCard(), openCycleOfNewCard(), openCycleOfNewCard());
+        var image = directory.resolve("store.img");
+        StoreImage.write(eventStore, image);
+
+        // when
+        var started = new EventStore(ImageEventStorage.open(image), Metrics.disabled());
+
+        // then
+        for (var cycleId : cycleIds) {
+            var cardStream = cycleId.cardId().toString();
+            assertEquals(
+                eventStore.readEvents(VirtualCreditCardEvent.class, cardStream),
+                started.readEvents(VirtualCreditCardEvent.class, cardStream)
+            );
+            assertEquals(
+                eventStore.readEvents(BillingCycleEvent.class, cycleId.toString()),
+                started.readEvents(BillingCycleEvent.class, cycleId.toString())
+            );
+        }
+        assertEquals(
+            eventStore.streamIds("BillingCycle", null, 10),
+            started.streamIds("BillingCycle", null, 10)
+        );
+        assertEquals(eventStore.readAll(0, 100), started.readAll(0, 100));
+    }
+
+    @Test
+    void appendsContinueAfterImage() {
+        // given
+        var cycleId = openCycleOfNewCard();
+        var image = directory.resolve("store.img");
+        StoreImage.write(eventStore, image);
+        var started = new EventStore(ImageEventStorage.open(image), Metrics.disabled());
+        var cardStream = cycleId.cardId().toString();
+        var version = eventStore.readEvents(cardStream, 1, 100).size();
+
+        // when
+        var deactivated = new VirtualCreditCardEvent.CardDeactivated(cycleId.cardId(), Instant.now());
+        var result = started.appendToStream(cardStream, List.of(deactivated), version);
+
+        // then
+        assertEquals(Result.Success, result);
+        var last = started.readEventsBackward(cardStream, Integer.MAX_VALUE, 2);
+        assertEquals(deactivated, last.getFirst().data());
+        assertEquals(version + 1, last.getFirst().metadata().version());
+        assertEquals(eventStore.nextPosition(), last.getFirst().metadata().position());
+        assertEquals(eventStore.readEvents(cardStream, version, 1), last.subList(1, 2));
+        assertEquals(version + 1, started.readEvents(cardStream, 1, 100).size());
+    }
+
+    @Test
+    void restoresCollectionsFromImage() {
+        // given
+        var handler = new BillingCycleEventHandler(creditCardDatabase, new BillingCycleDatabase(eventStore));
+        var cycleId = openCycleOfNewCard();
+        handler.rebuildFrom(eventStore);
+        var image = directory.resolve("store.img");
+        StoreImage.write(eventStore, image, handler.imagedCollections());
+
+        // when
+        var storage = ImageEventStorage.open(image);
+        var started = new EventStore(storage, Metrics.disabled());
+        var metrics = new MetricsRegistry();
+        var restarted = new BillingCycleEventHandler(
+            new VirtualCreditCardDatabase(started),
+            new BillingCycleDatabase(started),
+            metrics
+        );
+        storage.restore(restarted.imagedCollections());
+
+        // then
+        var opened = started.readEvents(cycleId.cardId().toString(), 1, 100).stream()
+            .filter(event -> event.data() instanceof VirtualCreditCardEvent.CycleOpened)
+            .findFirst()
+            .orElseThrow();
+        restarted.handleOnce(opened);
+        assertEquals(1, metrics.counter("billingCycleEventHandler.duplicates").count());
+        assertEquals(0, restarted.rebuildFrom(started).replayed());
+    }
+
+    @Test
+    void refusesImageOfOtherFormat() throws IOException {
+        // given
+        var image = directory.resolve("store.img");
+        StoreImage.write(eventStore, image);
+        try (var channel = FileChannel.open(image, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, EventCodec.schemaVersion - 1), 4);
+        }
+
+        // expect
+        assertThrows(IllegalArgumentException.class, () -> ImageEventStorage.open(image));
+    }
+
+    @Test
+    void readsStreamsEvictedFromMaterializedCache() {
+        // given
+        var cycleIds = List.of(openCycleOfNewCard(), openCycleOfNewCard(), openCycleOfNewCard());
+        var image = directory.resolve("store.img");
+        StoreImage.write(eventStore, image);
+
+        // when
+        var storage = ImageEventStorage.open(image, 1);
+        var started = new EventStore(storage, Metrics.disabled());
+
+        // then
+        for (int read = 0; read < 2; read++) {
+            for (var cycleId : cycleIds) {
+                assertEquals(
+                    eventStore.readEvents(BillingCycleEvent.class, cycleId.toString()),
+                    started.readEvents(BillingCycleEvent.class, cycleId.toString())
+                );
+                assertEquals(
+                    eventStore.readEvents(cycleId.cardId().toString(), 1, 100).size(),
+                    storage.version(cycleId.cardId().toString())
+                );
+            }
+        }
+    }
+
+    @Test
+    void imagesEventsLargerThanAnyFixedBuffer() {
+        // given
+        var streamId = "Ownership:" + "1".repeat(100_000);
+        eventStore.appendToStream(streamId, List.of(new OwnershipEvent.AccessGranted(CardId.random(), OwnerId.random(), Instant.now())), 0);
+        var image = directory.resolve("store.img");
+
+        // when
+        StoreImage.write(eventStore, image);
+        var started = new EventStore(ImageEventStorage.open(image), Metrics.disabled());
+
+        // then
+        assertEquals(eventStore.readAll(0, 10), started.readAll(0, 10));
+    }
+
+    BillingCycleId openCycleOfNewCard() {
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        billingCycleService.openNextCycle(card.id());
+        return billingCycleService.getCurrentlyOpenedBillingCycleId(card.id()).orElseThrow();
+    }
+}
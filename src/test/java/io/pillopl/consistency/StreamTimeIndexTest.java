@@ -0,0 +1,114 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+
+import javax.money.Monetary;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class StreamTimeIndexTest {
+    EventStore eventStore = new EventStore();
+    StreamTimeIndex timeIndex = new StreamTimeIndex(2);
+    VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(eventStore, timeIndex);
+    BillingCycleDatabase billingCycleDatabase = new BillingCycleDatabase(eventStore, timeIndex);
+    BillingCycleService billingCycleService = new BillingCycleService(creditCardDatabase, billingCycleDatabase);
+
+    @Test
+    void findsCycleAsOfInstantAndPosition() throws InterruptedException {
+        // given
+        timeIndex.subscribeTo(eventStore);
+        var cycleId = openCycleOfNewCard();
+        var instants = new ArrayList<Instant>();
+        var positions = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(2);
+            withdraw(cycleId, 10);
+            instants.add(Instant.now());
+            positions.add(eventStore.nextPosition() - 1);
+            Thread.sleep(2);
+        }
+
+        // expect
+        for (int i = 0; i < 5; i++) {
+            var expected = Money.of(100 - 10 * (i + 1), "USD");
+            assertEquals(expected, billingCycleDatabase.findAsOf(cycleId, instants.get(i)).availableLimit());
+            assertEquals(expected, billingCycleDatabase.findAsOf(cycleId, positions.get(i)).availableLimit());
+        }
+    }
+
+    @Test
+    void findsCardAsOfInstantFromRebuiltIndex() throws InterruptedException {
+        // given
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        Thread.sleep(2);
+        var beforeChange = Instant.now();
+        Thread.sleep(2);
+        card = creditCardDatabase.find(card.id());
+        var version = card.version();
+        card.assignLimit(Money.of(300, "USD"));
+        creditCardDatabase.save(card, version);
+
+        // when
+        timeIndex.rebuildFrom(eventStore);
+
+        // then
+        assertEquals(Money.of(100, "USD"), creditCardDatabase.findAsOf(card.id(), beforeChange).getLimit().max());
+        assertEquals(Money.of(300, "USD"), creditCardDatabase.findAsOf(card.id(), Instant.now()).getLimit().max());
+    }
+
+    @Test
+    void findsAsOfInstantWithoutIndex() throws InterruptedException {
+        // given
+        var unindexed = new BillingCycleDatabase(eventStore);
+        var cycleId = openCycleOfNewCard();
+        withdraw(cycleId, 10);
+        Thread.sleep(2);
+        var beforeSecond = Instant.now();
+        Thread.sleep(2);
+        withdraw(cycleId, 10);
+
+        // expect
+        assertEquals(Money.of(90, "USD"), unindexed.findAsOf(cycleId, beforeSecond).availableLimit());
+    }
+
+    @Test
+    void timesNeverGoBackBehindReplicatedEvents() {
+        // given
+        var cardId = CardId.random();
+        var streamId = OwnershipDatabase.streamIdOf(cardId);
+        var ahead = Instant.now().plus(Duration.ofHours(1));
+        var granted = new OwnershipEvent.AccessGranted(cardId, OwnerId.random(), Instant.now());
+        eventStore.replicate(List.of(EventEnvelope.from(streamId, granted, 1, 0, ahead)));
+
+        // when
+        eventStore.appendToStream(streamId, List.of(granted), 1);
+
+        // then
+        var appended = eventStore.readEvents(streamId, 2, 1).getFirst();
+        assertFalse(appended.metadata().occurredAt().isBefore(ahead));
+        assertEquals(2, timeIndex.eventsAsOf(eventStore, streamId, ahead).size());
+    }
+
+    void withdraw(BillingCycleId cycleId, int amount) {
+        var cycle = billingCycleDatabase.find(cycleId);
+        var version = cycle.version();
+        cycle.withdraw(Money.of(amount, "USD"));
+        billingCycleDatabase.save(cycle, version);
+    }
+
+    BillingCycleId openCycleOfNewCard() {
+        var card = VirtualCreditCard.create(CardId.random(), Monetary.getCurrency("USD"));
+        card.assignLimit(Money.of(100, "USD"));
+        creditCardDatabase.save(card, 0);
+        billingCycleService.openNextCycle(card.id());
+        return billingCycleService.getCurrentlyOpenedBillingCycleId(card.id()).orElseThrow();
+    }
+}
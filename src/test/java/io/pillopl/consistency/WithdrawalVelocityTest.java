@@ -0,0 +1,131 @@
+package io.pillopl.consistency;
+
+import org.javamoney.moneta.Money;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WithdrawalVelocityTest {
+    MovingClock clock = new MovingClock(Instant.parse("2026-01-01T10:00:00Z"));
+    WithdrawalVelocity velocity = new WithdrawalVelocity(
+        clock, new VelocityLimits(2, 3, Money.of(1_000, "USD")), Metrics.disabled()
+    );
+    CardId cardId = CardId.random();
+
+    @Test
+    void limitsWithdrawalsPerMinuteAndHour() {
+        // given
+        withdraw(10);
+        withdraw(10);
+
+        // expect
+        assertEquals(Result.Failure, velocity.admit(cardId, Money.of(10, "USD")));
+
+        // when
+        clock.advance(Duration.ofSeconds(61));
+
+        // then
+        assertEquals(0, velocity.withdrawalsInLastMinute(cardId));
+        assertEquals(Result.Success, velocity.admit(cardId, Money.of(10, "USD")));
+
+        // when
+        withdraw(10);
+
+        // then
+        assertEquals(3, velocity.withdrawalsInLastHour(cardId));
+        assertEquals(Result.Failure, velocity.admit(cardId, Money.of(10, "USD")));
+    }
+
+    @Test
+    void limitsAmountPerDay() {
+        // given
+        withdraw(900);
+
+        // expect
+        assertEquals(Result.Failure, velocity.admit(cardId, Money.of(200, "USD")));
+        assertEquals(Result.Success, velocity.admit(cardId, Money.of(100, "USD")));
+
+        // when
+        clock.advance(Duration.ofHours(24).plusMinutes(15));
+
+        // then
+        assertEquals(Result.Success, velocity.admit(cardId, Money.of(200, "USD")));
+        velocity.sweep();
+        assertEquals(0, velocity.trackedCards());
+    }
+
+    @Test
+    void recordingDropsIdleCardsAlongTheWay() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            velocity.record(CardId.random(), Money.of(10, "USD"), clock.millis());
+        }
+        clock.advance(Duration.ofHours(24).plusMinutes(15));
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            withdraw(10);
+        }
+
+        // then
+        assertEquals(1, velocity.trackedCards());
+    }
+
+    @Test
+    void countsFractionsOfCentAsWholeCents() {
+        // given
+        velocity.record(cardId, Money.of(999.991, "USD"), clock.millis());
+
+        // expect
+        assertEquals(Result.Failure, velocity.admit(cardId, Money.of(0.001, "USD")));
+        assertEquals(Result.Success, velocity.admit(CardId.random(), Money.of(999.999, "USD")));
+    }
+
+    @Test
+    void rejectsOtherCurrencyThanLimits() {
+        // given
+        velocity.record(cardId, Money.of(10, "EUR"), clock.millis());
+
+        // expect
+        assertEquals(Result.Failure, velocity.admit(cardId, Money.of(10, "EUR")));
+        assertEquals(Result.Failure, velocity.admit(CardId.random(), Money.of(10, "EUR")));
+        assertEquals(Result.Success, velocity.admit(cardId, Money.of(1_000, "USD")));
+    }
+
+    void withdraw(int amount) {
+        velocity.record(cardId, Money.of(amount, "USD"), clock.millis());
+    }
+
+    static class MovingClock extends Clock {
+        private Instant now;
+
+        MovingClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -18,7 +18,7 @@ class WithdrawingTest {
     EventStore eventStore = new EventStore();
     BillingCycleDatabase billingCycleDatabase = new BillingCycleDatabase(eventStore);
     VirtualCreditCardDatabase creditCardDatabase = new VirtualCreditCardDatabase(eventStore);
-    OwnershipDatabase ownershipDatabase = new OwnershipDatabase();
+    OwnershipDatabase ownershipDatabase = new OwnershipDatabase(eventStore);
 
     BillingCycleEventHandler eventHandler = new BillingCycleEventHandler(creditCardDatabase, billingCycleDatabase);
     WithdrawService withdrawService = new WithdrawService(billingCycleDatabase, ownershipDatabase);
@@ -54,6 +54,52 @@ class WithdrawingTest {
         assertEquals(Money.of(50, "USD"), availableLimit(cycleId));
     }
 
+    @Test
+    void retriedWithdrawalWithdrawsOnce() {
+        //given
+        CardId creditCard = newCreditCard();
+        //and
+        addLimitService.addLimit(creditCard, Money.of(100, "USD"));
+        //and
+        ownershipService.addAccess(creditCard, OSKAR);
+        //and
+        var cycleId = openBillingCycle(creditCard);
+        //and
+        var key = IdempotencyKey.random();
+
+        //when
+        Result first = withdrawService.withdraw(key, cycleId, of(50, "USD"), OSKAR);
+        Result retried = withdrawService.withdraw(key, cycleId, of(50, "USD"), OSKAR);
+
+        //then
+        assertEquals(Success, first);
+        assertEquals(Success, retried);
+        assertEquals(Money.of(50, "USD"), availableLimit(cycleId));
+    }
+
+    @Test
+    void cantWithdrawFasterThanVelocityLimits() {
+        //given
+        var velocity = new WithdrawalVelocity(new VelocityLimits(1, 10, Money.of(1_000, "USD")));
+        velocity.subscribeTo(eventStore);
+        var checkedService = new WithdrawService(
+            billingCycleDatabase, ownershipDatabase, Metrics.disabled(), new IdempotencyIndex(), velocity
+        );
+        //and
+        CardId creditCard = newCreditCard();
+        addLimitService.addLimit(creditCard, Money.of(100, "USD"));
+        ownershipService.addAccess(creditCard, OSKAR);
+        var cycleId = openBillingCycle(creditCard);
+
+        //when
+        Result first = checkedService.withdraw(cycleId, of(10, "USD"), OSKAR);
+        Result second = checkedService.withdraw(cycleId, of(10, "USD"), OSKAR);
+
+        //then
+        assertEquals(Success, first);
+        assertEquals(Failure, second);
+        assertEquals(Money.of(90, "USD"), availableLimit(cycleId));
+    }
 
     @Test
     void cantWithdrawMoreThanLimit() {